@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLiteStorageEngine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An enumerator over the rows of an all-docs query that reads them from the database one at a
+ * time, as they're asked for, instead of building the whole result up front. Use it to walk
+ * databases too big to hold in memory.
+ *
+ * The enumerator holds a database cursor open until it reaches the end or close() is called, so
+ * an enumeration that's abandoned early should be closed. To continue later, pass the last row's
+ * document ID (getLastDocId()) to Query.setStartAfterDocId(): the next query resumes right after
+ * it without stepping over the rows already seen, as skip would.
+ */
+public class AllDocsEnumerator implements Iterator<QueryRow>, Iterable<QueryRow> {
+
+    private final Database database;
+    private final QueryOptions options;
+    private final boolean includeDeletedDocs;
+    private final boolean collectConflicts;
+    private final int deletedColumn;
+
+    private SQLiteStorageEngine connection;
+    private Cursor cursor;
+    private boolean onRow;  // is the cursor positioned on a row not yet read?
+    private QueryRow nextRow;
+    private String lastDocId;
+
+    /**
+     * Takes ownership of the cursor, and of the connection it was read from (which is released
+     * back to the database when the enumerator is closed).
+     */
+    @InterfaceAudience.Private
+    /* package */ AllDocsEnumerator(Database database, QueryOptions options, SQLiteStorageEngine connection, Cursor cursor) {
+        this.database = database;
+        this.options = options;
+        this.connection = connection;
+        this.cursor = cursor;
+        this.includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+        this.collectConflicts = (options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS
+                || options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS);
+        this.deletedColumn = database.getDeletedColumnIndex(options);
+        this.onRow = cursor.moveToNext();
+    }
+
+    /**
+     * The document ID of the last row returned by next(), or null if there hasn't been one.
+     */
+    @InterfaceAudience.Public
+    public String getLastDocId() {
+        return lastDocId;
+    }
+
+    @Override
+    @InterfaceAudience.Public
+    public boolean hasNext() {
+        if (nextRow == null) {
+            nextRow = readRow();
+        }
+        return nextRow != null;
+    }
+
+    @Override
+    @InterfaceAudience.Public
+    public QueryRow next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        QueryRow row = nextRow;
+        nextRow = null;
+        lastDocId = row.getDocumentId();
+        return row;
+    }
+
+    @Override
+    @InterfaceAudience.Public
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    @InterfaceAudience.Public
+    public Iterator<QueryRow> iterator() {
+        return this;
+    }
+
+    /**
+     * Closes the underlying cursor. Called automatically once the last row has been read.
+     */
+    @InterfaceAudience.Public
+    public void close() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+            database.releaseReadConnection(connection);
+            connection = null;
+        }
+        onRow = false;
+    }
+
+    /**
+     * Reads the next document's row, consuming the rows of its losing conflicts too.
+     * Returns null (and closes) at the end.
+     */
+    private QueryRow readRow() {
+        try {
+            while (onRow) {
+                long docNumericID = cursor.getLong(0);
+                String docId = cursor.getString(1);
+                String revId = cursor.getString(2);
+                long sequenceNumber = cursor.getLong(3);
+                boolean deleted = includeDeletedDocs && cursor.getInt(deletedColumn) > 0;
+                Map<String, Object> docContents = null;
+                if (options.isIncludeDocs()) {
+                    byte[] json = cursor.getBlob(4);
+                    docContents = database.documentPropertiesFromJSON(json, docId, revId, deleted, sequenceNumber, options.getContentOptions());
+                }
+
+                // Iterate over following rows with the same doc_id -- these are conflicts.
+                // Skip them, but collect their revIDs if the 'conflicts' option is set:
+                List<String> conflicts = new ArrayList<String>();
+                while ((onRow = cursor.moveToNext()) && cursor.getLong(0) == docNumericID) {
+                    if (collectConflicts) {
+                        if (conflicts.isEmpty()) {
+                            conflicts.add(revId);
+                        }
+                        conflicts.add(cursor.getString(2));
+                    }
+                }
+
+                if (options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS && conflicts.isEmpty()) {
+                    continue;
+                }
+
+                Map<String, Object> value = new HashMap<String, Object>();
+                value.put("rev", revId);
+                value.put("_conflicts", conflicts);
+                if (includeDeletedDocs) {
+                    value.put("deleted", (deleted ? true : null));
+                }
+                QueryRow row = new QueryRow(docId, sequenceNumber, docId, value, docContents);
+                row.setDatabase(database);
+                // With explicit keys, the caller matches rows up with the keys; no filtering
+                if (options.getKeys() != null || options.getPostFilter() == null || options.getPostFilter().apply(row)) {
+                    return row;
+                }
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        close();
+        return null;
+    }
+}
@@ -46,6 +46,10 @@ public class BlobStore {
     public static String TMP_FILE_EXTENSION = ".blobtmp";
     public static String TMP_FILE_PREFIX = "tmp";
 
+    // deleteBlobIfIdle() leaves blobs stored (or found already stored) more recently than this:
+    // the attachment row that will refer to one may not have been inserted yet.
+    public static final long BLOB_IDLE_MILLIS = 10 * 60 * 1000;
+
     private String path;
 
     public BlobStore(String path) {
@@ -231,13 +235,16 @@ public class BlobStore {
         String path = pathForKey(outKey);
         File file = new File(path);
 
-        if(file.canRead()) {
-            // object with this hash already exists, we should delete tmp file and return true
-            tmp.delete();
-            return true;
-        } else {
-            // does not exist, we should rename tmp file to this name
-            tmp.renameTo(file);
+        synchronized (this) {
+            if(file.canRead()) {
+                // object with this hash already exists, we should delete tmp file and return true
+                file.setLastModified(System.currentTimeMillis());
+                tmp.delete();
+                return true;
+            } else {
+                // does not exist, we should rename tmp file to this name
+                tmp.renameTo(file);
+            }
         }
         return true;
     }
@@ -247,26 +254,29 @@ public class BlobStore {
         outKey.setBytes(newKey.getBytes());
         String path = pathForKey(outKey);
         File file = new File(path);
-        if(file.canRead()) {
-            return true;
-        }
+        synchronized (this) {
+            if(file.canRead()) {
+                file.setLastModified(System.currentTimeMillis());
+                return true;
+            }
 
-        FileOutputStream fos = null;
-        try {
-            fos = new FileOutputStream(file);
-            fos.write(data);
-        } catch (FileNotFoundException e) {
-            Log.e(Log.TAG_BLOB_STORE, "Error opening file for output", e);
-            return false;
-        } catch(IOException ioe) {
-            Log.e(Log.TAG_BLOB_STORE, "Error writing to file", ioe);
-            return false;
-        } finally {
-            if(fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    // ignore
+            FileOutputStream fos = null;
+            try {
+                fos = new FileOutputStream(file);
+                fos.write(data);
+            } catch (FileNotFoundException e) {
+                Log.e(Log.TAG_BLOB_STORE, "Error opening file for output", e);
+                return false;
+            } catch(IOException ioe) {
+                Log.e(Log.TAG_BLOB_STORE, "Error writing to file", ioe);
+                return false;
+            } finally {
+                if(fos != null) {
+                    try {
+                        fos.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
                 }
             }
         }
@@ -333,6 +343,10 @@ public class BlobStore {
     }
 
     public int deleteBlobsExceptWithKeys(List<BlobKey> keysToKeep) {
+        return deleteBlobsExceptWithKeys(new HashSet<BlobKey>(keysToKeep));
+    }
+
+    public int deleteBlobsExceptWithKeys(Set<BlobKey> keysToKeep) {
         int numDeleted = 0;
         File file = new File(path);
         File[] contents = file.listFiles();
@@ -353,9 +367,38 @@ public class BlobStore {
     }
 
     public int deleteBlobs() {
-        return deleteBlobsExceptWithKeys(new ArrayList<BlobKey>());
+        return deleteBlobsExceptWithKeys(new HashSet<BlobKey>());
+    }
+
+    /**
+     * Deletes the blob with the given key. Returns false if it couldn't be deleted; a blob that
+     * doesn't exist counts as deleted.
+     */
+    public boolean deleteBlobForKey(BlobKey key) {
+        File file = new File(pathForKey(key));
+        if (file.delete() || !file.exists()) {
+            return true;
+        }
+        Log.e(Log.TAG_BLOB_STORE, "Error deleting attachment: %s", file);
+        return false;
     }
     
+    /**
+     * Deletes the blob with the given key unless it was stored within BLOB_IDLE_MILLIS, i.e. it
+     * may be about to be referenced by an attachment row that hasn't been inserted yet.
+     * Returns true if the blob was deleted (or didn't exist).
+     */
+    public synchronized boolean deleteBlobIfIdle(BlobKey key) {
+        File file = new File(pathForKey(key));
+        if (!file.exists()) {
+            return true;
+        }
+        if (System.currentTimeMillis() - file.lastModified() < BLOB_IDLE_MILLIS) {
+            return false;
+        }
+        return deleteBlobForKey(key);
+    }
+
     public boolean isGZipped(BlobKey key) {
         int magic = 0;
         String path = pathForKey(key);
@@ -132,12 +132,16 @@ public class BlobStoreWriter {
         // Move temp file to correct location in blob store:
         String destPath = store.pathForKey(blobKey);
         File destPathFile = new File(destPath);
-        boolean result = tempFile.renameTo(destPathFile);
-
-        // If the move fails, assume it means a file with the same name already exists; in that
-        // case it must have the identical contents, so we're still OK.
-        if (result == false) {
-            cancel();
+        synchronized (store) {
+            boolean result = tempFile.renameTo(destPathFile);
+
+            // If the move fails, assume it means a file with the same name already exists; in that
+            // case it must have the identical contents, so we're still OK. Touch it so that
+            // BlobStore.deleteBlobIfIdle() leaves it alone until it's referenced.
+            if (result == false) {
+                destPathFile.setLastModified(System.currentTimeMillis());
+                cancel();
+            }
         }
 
         tempFile = null;
@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.text.Collator;
+import java.text.RuleBasedCollator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Encodes view keys into byte strings that sort, compared byte by byte (as SQLite compares
+ * BLOBs), in the same order as their JSON values collate. The maps table keeps each row's key in
+ * this form in its collation_key column, so range scans and ORDER BY don't have to call the JSON
+ * collator, which parses both keys on every comparison.
+ *
+ * Each value starts with a type tag, and the tags are in collation order:
+ * <ul>
+ *   <li>null, false, true: just the tag;</li>
+ *   <li>numbers: 8 bytes, the double's bits with the sign bit flipped (and the other bits too if
+ *       negative), which sort as unsigned big-endian integers in numeric order;</li>
+ *   <li>strings: the string's collation key, then its UTF-8 bytes, both escaped (so they contain
+ *       no zero bytes) and followed by a zero byte. The collation key puts strings in Unicode
+ *       collation order; the UTF-8 breaks ties between strings that collate equally.
+ *       ASCII-collated views leave the collation key empty, which orders strings by code
+ *       point;</li>
+ *   <li>arrays: the encoded items, followed by a zero byte, which sorts before any tag so that
+ *       a prefix of an array sorts before it;</li>
+ *   <li>objects: the encoded keys and values in order, followed by a zero byte.</li>
+ * </ul>
+ *
+ * The encoding isn't decoded: numbers lose their type and precision, so query results read the
+ * key's JSON instead. Unicode collation keys depend on the platform's collator, so the database
+ * resets its view indexes when collatorVersion() changes.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+final class CollatableKey {
+
+    private static final byte END = 0x00;
+    private static final byte ESCAPE = 0x01;
+
+    private static final byte TAG_NULL = 0x01;
+    private static final byte TAG_FALSE = 0x02;
+    private static final byte TAG_TRUE = 0x03;
+    private static final byte TAG_NUMBER = 0x04;
+    private static final byte TAG_STRING = 0x05;
+    private static final byte TAG_ARRAY = 0x06;
+    private static final byte TAG_OBJECT = 0x07;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Strings whose order differs between collators or versions of their data: case, accents,
+    // ligatures, punctuation, digits, and a few scripts
+    private static final String[] COLLATOR_SAMPLES = {
+            "a", "A", "\u00e1", "\u00e4", "e\u0301", "\u00df", "\u00e6", "\u0131", "\u0130", "\u00f8",
+            "-", "_", " ", "1", "\u00bd", "\u03a9", "\u044b", "\u05d0", "\u0627", "\u0915",
+            "\u30a2", "\u4e2d", "\ud55c", "\ud83d\ude00"
+    };
+
+    // Collators aren't safe to share between the map threads
+    private static final ThreadLocal<Collator> collator = new ThreadLocal<Collator>() {
+        @Override
+        protected Collator initialValue() {
+            return Collator.getInstance(Locale.ROOT);
+        }
+    };
+
+    private CollatableKey() {
+    }
+
+    /**
+     * Encodes a key as emitted by a map function (or given as a query key).
+     * @param unicode true to order strings by Unicode collation, false by code point
+     */
+    static byte[] encode(Object key, boolean unicode) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        encode(key, unicode, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Identifies the collator that Unicode collation keys come from. Java has no API for the
+     * version of its collation data, so this hashes the collator's rules and the collation keys
+     * of some sample strings; a change in them changes the result, while a Java update that
+     * doesn't change collation leaves it alone.
+     */
+    static String collatorVersion() {
+        Collator unicodeCollator = collator.get();
+        int hash = unicodeCollator.getClass().getName().hashCode();
+        if (unicodeCollator instanceof RuleBasedCollator) {
+            hash = 31 * hash + ((RuleBasedCollator) unicodeCollator).getRules().hashCode();
+        }
+        for (String sample : COLLATOR_SAMPLES) {
+            hash = 31 * hash + Arrays.hashCode(unicodeCollator.getCollationKey(sample).toByteArray());
+        }
+        return Integer.toHexString(hash);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void encode(Object key, boolean unicode, ByteArrayOutputStream out) {
+        if (key == null) {
+            out.write(TAG_NULL);
+        } else if (key instanceof Boolean) {
+            out.write(((Boolean) key) ? TAG_TRUE : TAG_FALSE);
+        } else if (key instanceof Number) {
+            out.write(TAG_NUMBER);
+            encodeNumber(((Number) key).doubleValue(), out);
+        } else if (key instanceof CharSequence || key instanceof Character) {
+            out.write(TAG_STRING);
+            String string = key.toString();
+            if (unicode) {
+                writeEscaped(collator.get().getCollationKey(string).toByteArray(), out);
+            }
+            out.write(END);
+            writeEscaped(string.getBytes(UTF8), out);
+            out.write(END);
+        } else if (key instanceof Collection) {
+            out.write(TAG_ARRAY);
+            for (Object item : (Collection<Object>) key) {
+                encode(item, unicode, out);
+            }
+            out.write(END);
+        } else if (key instanceof Object[]) {
+            out.write(TAG_ARRAY);
+            for (Object item : (Object[]) key) {
+                encode(item, unicode, out);
+            }
+            out.write(END);
+        } else if (key instanceof Map) {
+            out.write(TAG_OBJECT);
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) key).entrySet()) {
+                encode(String.valueOf(entry.getKey()), unicode, out);
+                encode(entry.getValue(), unicode, out);
+            }
+            out.write(END);
+        } else {
+            // Anything else is encoded as whatever it becomes in JSON
+            encode(Manager.getObjectMapper().convertValue(key, Object.class), unicode, out);
+        }
+    }
+
+    private static void encodeNumber(double number, ByteArrayOutputStream out) {
+        if (number == 0.0) {
+            number = 0.0;  // -0.0 equals 0.0
+        }
+        long bits = Double.doubleToLongBits(number);
+        bits = (bits < 0) ? ~bits : (bits ^ Long.MIN_VALUE);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift));
+        }
+    }
+
+    private static void writeEscaped(byte[] bytes, ByteArrayOutputStream out) {
+        for (byte b : bytes) {
+            if (b == END || b == ESCAPE) {
+                out.write(ESCAPE);
+                out.write(b + 1);
+            } else {
+                out.write(b);
+            }
+        }
+    }
+}
@@ -21,19 +21,27 @@ import com.couchbase.lite.internal.AttachmentInternal;
 import com.couchbase.lite.internal.Body;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.internal.RevisionTree;
 import com.couchbase.lite.replicator.Replication;
 import com.couchbase.lite.replicator.ReplicationState;
 import com.couchbase.lite.storage.ContentValues;
 import com.couchbase.lite.storage.Cursor;
 import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.SQLiteConnectionPool;
+import com.couchbase.lite.storage.SQLiteStatement;
+import com.couchbase.lite.storage.SQLiteStatementCache;
 import com.couchbase.lite.storage.SQLiteStorageEngine;
 import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
 import com.couchbase.lite.support.Base64;
+import com.couchbase.lite.support.BodyCompressor;
+import com.couchbase.lite.support.BodyEncoding;
 import com.couchbase.lite.support.FileDirUtils;
 import com.couchbase.lite.support.HttpClientFactory;
 import com.couchbase.lite.support.PersistentCookieStore;
 import com.couchbase.lite.util.CollectionUtils;
 import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.LruCache;
+import com.couchbase.lite.util.StringLongCache;
 import com.couchbase.lite.util.StreamUtils;
 import com.couchbase.lite.util.TextUtils;
 import com.couchbase.lite.util.Utils;
@@ -49,19 +57,25 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -82,6 +96,39 @@ public final class Database {
     private String name;
     private SQLiteStorageEngine database;
 
+    // Compiled statements for the hot SQL paths, one cache per thread so no statement is shared
+    // between threads. Lives as long as 'database'.
+    private final Map<Thread, SQLiteStatementCache> statementCaches = new HashMap<Thread, SQLiteStatementCache>();
+
+    // Evicted caches whose statements are still in use; guarded by statementCaches.
+    private final List<SQLiteStatementCache> retiredStatementCaches = new ArrayList<SQLiteStatementCache>();
+
+    // Read-only connections used outside of transactions; null unless enabled in ManagerOptions.
+    private SQLiteConnectionPool readConnectionPool;
+
+    // docid -> doc_id of recently used documents. Only holds committed rows: ids found inside a
+    // transaction are kept in pendingDocNumericIDs until the outermost commit. Still cleared when
+    // any transaction rolls back, since another thread may have read one of its rows meanwhile.
+    private static final int MAX_DOC_NUMERIC_ID_CACHE_SIZE = 8192;
+    private final StringLongCache docNumericIDCache = new StringLongCache(MAX_DOC_NUMERIC_ID_CACHE_SIZE);
+
+    // docid -> doc_id found by this thread's open transaction; moved into docNumericIDCache when
+    // the outermost transaction commits, discarded when any level rolls back.
+    static class PendingDocNumericIDs extends ThreadLocal<Map<String, Long>> {
+        @Override
+        protected Map<String, Long> initialValue() {
+            return new HashMap<String, Long>();
+        }
+    }
+
+    private PendingDocNumericIDs pendingDocNumericIDs = new PendingDocNumericIDs();
+
+    // doc_id -> revision tree of recently replicated-into documents, used by forceInsert() and
+    // kept up to date by it and putRevision(). Only read or changed inside a transaction; emptied
+    // when one rolls back, and trees are dropped when revisions are purged or pruned.
+    private static final int MAX_REVISION_TREE_CACHE_SIZE = 100;
+    private final LruCache<Long, RevisionTree> revisionTrees = new LruCache<Long, RevisionTree>(MAX_REVISION_TREE_CACHE_SIZE);
+
     private boolean open = false;
 
     // transactionLevel is per thread
@@ -94,6 +141,52 @@ public final class Database {
 
     private TransactionLevel transactionLevel = new TransactionLevel();
 
+    // Size of changesToNotify when each of this thread's open transactions began (innermost
+    // last), so rolling back a nested transaction only discards the changes it made.
+    static class TransactionChangeMarks extends ThreadLocal<LinkedList<Integer>> {
+        @Override
+        protected LinkedList<Integer> initialValue() {
+            return new LinkedList<Integer>();
+        }
+    }
+
+    private TransactionChangeMarks transactionChangeMarks = new TransactionChangeMarks();
+
+    // Coalesces concurrent top-level runInTransaction() calls; null unless enabled in ManagerOptions.
+    private GroupCommitter groupCommitter;
+
+    // Writer thread for putDocumentAsync() etc., created on first use
+    private WriteQueue writeQueue;
+
+    // Revision body compression. The compressor holds the database's dictionary and is kept even
+    // when compression is turned off, since existing compressed rows still have to be read.
+    private static final String INFO_BODY_COMPRESSION = "body_compression";
+    private static final String INFO_BODY_COMPRESSION_DICTIONARY = "body_compression_dictionary";
+    private static final String INFO_BODY_COMPRESSION_MIGRATED = "body_compression_migrated";
+    private static final int BODY_DICTIONARY_SAMPLE_SIZE = 1000;
+    private static final int BODY_COMPRESSION_BATCH_SIZE = 500;
+    private volatile BodyCompressor bodyCompressor;
+    private volatile boolean bodyCompressionEnabled = false;
+    private final AtomicBoolean bodyCompressionMigrating = new AtomicBoolean(false);
+
+    // Encoding used for newly stored revision bodies; existing rows keep whatever they were
+    // written with (see BodyEncoding).
+    private static final String INFO_BODY_FORMAT = "body_format";
+    private volatile BodyFormat bodyFormat = BodyFormat.JSON;
+
+    // Version of the collator that Unicode collation keys in the view indexes came from (see
+    // CollatableKey.collatorVersion())
+    private static final String INFO_COLLATOR_VERSION = "collator_version";
+
+    // Compaction running in the background, if any (see compactIncrementally())
+    private IncrementalCompactor incrementalCompactor;
+
+    // Purging of expired documents (see setExpirationDate()). The sweep is scheduled on the
+    // Manager's work executor for the earliest expiration time, and purges in batches.
+    private static final int EXPIRY_PURGE_BATCH_SIZE = 100;
+    private ScheduledFuture expirySweep;
+    private long expirySweepTime = 0;
+
 
     /**
      * @exclude
@@ -224,6 +317,97 @@ public final class Database {
             "        UNIQUE (remote, push)); " +
             "    PRAGMA user_version = 3";             // at the end, update user_version
 
+    // The user_version the schema is upgraded to by open()
+    private static final int SCHEMA_VERSION = 27;
+
+    // Info keys of the statistics counters maintained by STATS_TRIGGERS:
+    private static final String STATS_DOC_COUNT = "stats_doc_count";                // docs whose current rev isn't deleted
+    private static final String STATS_LIVE_REVS = "stats_live_revs";                // non-deleted leaf revisions
+    private static final String STATS_BODY_BYTES = "stats_body_bytes";              // stored size of all revs.json
+    private static final String STATS_ATTACHMENT_BYTES = "stats_attachment_bytes";  // size of all referenced blobs
+
+    private static final String LIVE_REV = "current=1 AND deleted=0";
+    private static final String ATTACHMENT_SIZE = "CASE WHEN encoding != 0 THEN encoded_length ELSE length END";
+
+    // The counters are updated by triggers, so every write path keeps them right within its own
+    // transaction, including cascading deletes, purges and compaction.
+    private static final String[] STATS_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS stats_revs_insert AFTER INSERT ON revs BEGIN " +
+            "  UPDATE info SET value = value + IFNULL(LENGTH(NEW.json), 0) WHERE key = '" + STATS_BODY_BYTES + "'; " +
+            "  UPDATE info SET value = value + 1 WHERE key = '" + STATS_LIVE_REVS + "' " +
+            "    AND NEW.current=1 AND NEW.deleted=0; " +
+            "  UPDATE info SET value = value + 1 WHERE key = '" + STATS_DOC_COUNT + "' " +
+            "    AND NEW.current=1 AND NEW.deleted=0 AND NOT EXISTS (SELECT 1 FROM revs " +
+            "      WHERE doc_id = NEW.doc_id AND " + LIVE_REV + " AND sequence != NEW.sequence); " +
+            "END",
+            "CREATE TRIGGER IF NOT EXISTS stats_revs_delete AFTER DELETE ON revs BEGIN " +
+            "  UPDATE info SET value = value - IFNULL(LENGTH(OLD.json), 0) WHERE key = '" + STATS_BODY_BYTES + "'; " +
+            "  UPDATE info SET value = value - 1 WHERE key = '" + STATS_LIVE_REVS + "' " +
+            "    AND OLD.current=1 AND OLD.deleted=0; " +
+            "  UPDATE info SET value = value - 1 WHERE key = '" + STATS_DOC_COUNT + "' " +
+            "    AND OLD.current=1 AND OLD.deleted=0 AND NOT EXISTS (SELECT 1 FROM revs " +
+            "      WHERE doc_id = OLD.doc_id AND " + LIVE_REV + "); " +
+            "END",
+            "CREATE TRIGGER IF NOT EXISTS stats_revs_update_json AFTER UPDATE OF json ON revs BEGIN " +
+            "  UPDATE info SET value = value + IFNULL(LENGTH(NEW.json), 0) - IFNULL(LENGTH(OLD.json), 0) " +
+            "    WHERE key = '" + STATS_BODY_BYTES + "'; " +
+            "END",
+            "CREATE TRIGGER IF NOT EXISTS stats_revs_update_current AFTER UPDATE OF current ON revs " +
+            "  WHEN OLD.current IS NOT NEW.current AND NEW.deleted=0 BEGIN " +
+            "  UPDATE info SET value = value + (CASE WHEN NEW.current=1 THEN 1 ELSE -1 END) " +
+            "    WHERE key = '" + STATS_LIVE_REVS + "'; " +
+            "  UPDATE info SET value = value + (CASE WHEN NEW.current=1 THEN 1 ELSE -1 END) " +
+            "    WHERE key = '" + STATS_DOC_COUNT + "' AND NOT EXISTS (SELECT 1 FROM revs " +
+            "      WHERE doc_id = NEW.doc_id AND " + LIVE_REV + " AND sequence != NEW.sequence); " +
+            "END",
+            // Attachments with the same key share a blob; count it while any row refers to it
+            "CREATE TRIGGER IF NOT EXISTS stats_attachments_insert AFTER INSERT ON attachments " +
+            "  WHEN NOT EXISTS (SELECT 1 FROM attachments WHERE key = NEW.key AND rowid != NEW.rowid) BEGIN " +
+            "  UPDATE info SET value = value + IFNULL(CASE WHEN NEW.encoding != 0 THEN NEW.encoded_length ELSE NEW.length END, 0) " +
+            "    WHERE key = '" + STATS_ATTACHMENT_BYTES + "'; " +
+            "END",
+            "CREATE TRIGGER IF NOT EXISTS stats_attachments_delete AFTER DELETE ON attachments " +
+            "  WHEN NOT EXISTS (SELECT 1 FROM attachments WHERE key = OLD.key) BEGIN " +
+            "  UPDATE info SET value = value - IFNULL(CASE WHEN OLD.encoding != 0 THEN OLD.encoded_length ELSE OLD.length END, 0) " +
+            "    WHERE key = '" + STATS_ATTACHMENT_BYTES + "'; " +
+            "END"
+    };
+
+    // Maintain blob_garbage; the attachments_by_key index makes the reference checks cheap.
+    private static final String[] BLOB_GARBAGE_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS blob_garbage_attachments_delete AFTER DELETE ON attachments " +
+            "  WHEN NOT EXISTS (SELECT 1 FROM attachments WHERE key = OLD.key) BEGIN " +
+            "  INSERT OR IGNORE INTO blob_garbage (key) VALUES (OLD.key); " +
+            "END",
+            "CREATE TRIGGER IF NOT EXISTS blob_garbage_attachments_insert AFTER INSERT ON attachments BEGIN " +
+            "  DELETE FROM blob_garbage WHERE key = NEW.key; " +
+            "END"
+    };
+
+    // Record which reduces rows are out of date, for the views that have them (see MaterializedReduce)
+    private static final String[] REDUCES_DIRTY_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS reduces_maps_insert AFTER INSERT ON maps " +
+            "  WHEN NEW.view_id IN (SELECT view_id FROM reduce_views) BEGIN " +
+            "  INSERT OR IGNORE INTO reduces_dirty (view_id, collation_key) VALUES (NEW.view_id, NEW.collation_key); " +
+            "END",
+            "CREATE TRIGGER IF NOT EXISTS reduces_maps_delete AFTER DELETE ON maps " +
+            "  WHEN OLD.view_id IN (SELECT view_id FROM reduce_views) BEGIN " +
+            "  INSERT OR IGNORE INTO reduces_dirty (view_id, collation_key) VALUES (OLD.view_id, OLD.collation_key); " +
+            "END"
+    };
+
+    private static final String[] STATS_INITIAL_VALUES = {
+            "INSERT OR REPLACE INTO info (key, value) SELECT '" + STATS_DOC_COUNT + "', " +
+            "  COUNT(DISTINCT doc_id) FROM revs WHERE " + LIVE_REV,
+            "INSERT OR REPLACE INTO info (key, value) SELECT '" + STATS_LIVE_REVS + "', " +
+            "  COUNT(*) FROM revs WHERE " + LIVE_REV,
+            "INSERT OR REPLACE INTO info (key, value) SELECT '" + STATS_BODY_BYTES + "', " +
+            "  IFNULL(SUM(LENGTH(json)), 0) FROM revs",
+            "INSERT OR REPLACE INTO info (key, value) SELECT '" + STATS_ATTACHMENT_BYTES + "', " +
+            "  IFNULL(SUM(size), 0) FROM (SELECT MAX(IFNULL(" + ATTACHMENT_SIZE + ", 0)) AS size " +
+            "  FROM attachments GROUP BY key)"
+    };
+
 
     /**
      * Returns the currently registered filter compiler (nil by default).
@@ -281,6 +465,10 @@ public final class Database {
      */
     @InterfaceAudience.Public
     public int getDocumentCount() {
+        long count = statForKey(STATS_DOC_COUNT);
+        if (count >= 0) {
+            return (int) count;
+        }
         String sql = "SELECT COUNT(DISTINCT doc_id) FROM revs WHERE current=1 AND deleted=0";
         Cursor cursor = null;
         int result = 0;
@@ -300,6 +488,45 @@ public final class Database {
         return result;
     }
 
+    /**
+     * Statistics about the contents of the database, read from counters that are kept up to
+     * date as it changes, so this is cheap to poll. The keys are:
+     * <ul>
+     *   <li>doc_count: the number of (non-deleted) documents, as getDocumentCount()</li>
+     *   <li>live_rev_count: the number of non-deleted leaf revisions, i.e. counting conflicts</li>
+     *   <li>body_bytes: the stored size of all revision bodies</li>
+     *   <li>attachment_bytes: the size of all attachments in use, counting shared ones once</li>
+     *   <li>update_seq: the last sequence number, as getLastSequenceNumber()</li>
+     *   <li>disk_size: the size of the database file plus attachment_bytes</li>
+     * </ul>
+     */
+    @InterfaceAudience.Public
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("doc_count", getDocumentCount());
+        stats.put("live_rev_count", Math.max(statForKey(STATS_LIVE_REVS), 0));
+        stats.put("body_bytes", Math.max(statForKey(STATS_BODY_BYTES), 0));
+        stats.put("attachment_bytes", Math.max(statForKey(STATS_ATTACHMENT_BYTES), 0));
+        stats.put("update_seq", getLastSequenceNumber());
+        stats.put("disk_size", totalDataSize());
+        return stats;
+    }
+
+    /**
+     * Returns the value of a statistics counter, or -1 if it's missing.
+     */
+    private long statForKey(String key) {
+        String value = infoForKey(key);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                Log.w(Database.TAG, "Invalid value for %s: %s", key, value);
+            }
+        }
+        return -1;
+    }
+
     /**
      * The latest sequence number used.  Every new revision is assigned a new sequence number,
      * so this property increases monotonically as changes are made to the database. It can be
@@ -307,20 +534,16 @@ public final class Database {
      */
     @InterfaceAudience.Public
     public long getLastSequenceNumber() {
-        String sql = "SELECT MAX(sequence) FROM revs";
-        Cursor cursor = null;
         long result = 0;
         try {
-            cursor = database.rawQuery(sql, null);
-            if(cursor.moveToNext()) {
-                result = cursor.getLong(0);
+            SQLiteStatement statement = getCompiledStatement("SELECT MAX(sequence) FROM revs");
+            try {
+                result = statement.simpleQueryForLong();
+            } finally {
+                releaseStatement(statement);
             }
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error getting last sequence", e);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
         }
         return result;
     }
@@ -374,6 +597,99 @@ public final class Database {
 
     }
 
+    /**
+     * Starts compacting the database in the background, a small slice at a time, so that other
+     * writers are only ever held up for the length of one slice. Does the same work as compact(),
+     * except that the file is only shrunk if incremental vacuum is enabled.
+     * If a previous incremental compaction was interrupted, this resumes it.
+     * Does nothing if one is already running.
+     */
+    @InterfaceAudience.Public
+    public void compactIncrementally() {
+        compactIncrementally(IncrementalCompactor.DEFAULT_ROWS_PER_SLICE, IncrementalCompactor.DEFAULT_MILLIS_PER_SLICE);
+    }
+
+    /**
+     * Like compactIncrementally(), with the budget of each slice: it ends after processing
+     * maxRowsPerSlice rows or running for maxMillisPerSlice, whichever comes first.
+     */
+    @InterfaceAudience.Public
+    public void compactIncrementally(int maxRowsPerSlice, int maxMillisPerSlice) {
+        IncrementalCompactor compactor;
+        synchronized (this) {
+            if (incrementalCompactor != null) {
+                return;
+            }
+            compactor = new IncrementalCompactor(this, maxRowsPerSlice, maxMillisPerSlice);
+            incrementalCompactor = compactor;
+        }
+        compactor.start();
+    }
+
+    /**
+     * Stops a background compaction after its current slice. Progress is saved, so the next
+     * call to compactIncrementally() continues from there.
+     */
+    @InterfaceAudience.Public
+    public synchronized void stopIncrementalCompaction() {
+        if (incrementalCompactor != null) {
+            incrementalCompactor.stop();
+        }
+    }
+
+    /**
+     * Is a background compaction running?
+     */
+    @InterfaceAudience.Public
+    public synchronized boolean isCompacting() {
+        return incrementalCompactor != null && !incrementalCompactor.isStopped();
+    }
+
+    /* package */ synchronized void incrementalCompactionFinished(IncrementalCompactor compactor) {
+        if (incrementalCompactor == compactor) {
+            incrementalCompactor = null;
+        }
+    }
+
+    /**
+     * Is the database in SQLite's incremental vacuum mode, where free pages can be returned to
+     * the filesystem a few at a time (by compactIncrementally()) instead of by a full VACUUM?
+     */
+    @InterfaceAudience.Public
+    public boolean isIncrementalVacuumEnabled() {
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("PRAGMA auto_vacuum", (String[]) null);
+            return cursor.moveToNext() && cursor.getInt(0) == 2;  // 2 = INCREMENTAL
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error getting auto_vacuum mode", e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Turns SQLite's incremental vacuum mode on or off. SQLite only applies the change on a full
+     * VACUUM, which this runs; that is quick on a new database but takes as long as compact() on
+     * a big one, so do it early or during maintenance.
+     */
+    @InterfaceAudience.Public
+    public void setIncrementalVacuumEnabled(boolean enabled) throws CouchbaseLiteException {
+        if (enabled == isIncrementalVacuumEnabled()) {
+            return;
+        }
+        try {
+            database.execSQL(enabled ? "PRAGMA auto_vacuum = INCREMENTAL" : "PRAGMA auto_vacuum = NONE");
+            database.execSQL("VACUUM");
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error changing auto_vacuum mode", e);
+            throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
 
     /**
      * Deletes the database.
@@ -666,6 +982,9 @@ public final class Database {
      *
      * Does not commit the transaction if the code throws an Exception.
      *
+     * With ManagerOptions.setGroupCommit(true), a top-level call may share its SQLite commit with
+     * concurrent calls from other threads, and the block may run on one of those threads.
+     *
      * TODO: the iOS version has a retry loop, so there should be one here too
      *
      * @param transactionalTask
@@ -673,6 +992,11 @@ public final class Database {
     @InterfaceAudience.Public
     public boolean runInTransaction(TransactionalTask transactionalTask) {
 
+        GroupCommitter committer = groupCommitter;
+        if (committer != null && transactionLevel.get() == 0) {
+            return committer.run(transactionalTask);
+        }
+
         boolean shouldCommit = true;
 
         beginTransaction();
@@ -824,7 +1148,7 @@ public final class Database {
 
     /**
      * Set the maximum depth of a document's revision tree (or, max length of its revision history.)
-     * Revisions older than this limit will be deleted during a -compact: operation.
+     * Once set, older revisions are deleted as new ones are added, and by a -compact: operation.
      * Smaller values save space, at the expense of making document conflicts somewhat more likely.
      */
     @InterfaceAudience.Public
@@ -832,6 +1156,80 @@ public final class Database {
         this.maxRevTreeDepth = maxRevTreeDepth;
     }
 
+    /**
+     * Whether revision bodies are stored compressed.
+     */
+    @InterfaceAudience.Public
+    public boolean isBodyCompressionEnabled() {
+        return bodyCompressionEnabled;
+    }
+
+    /**
+     * Turns compression of stored revision bodies on or off. The setting is saved in the database.
+     * Turning it on builds a compression dictionary from the existing documents (the first time
+     * only) and starts compressing existing bodies in the background; new revisions are compressed
+     * as they're saved. Turning it off only affects revisions saved afterwards: bodies that are
+     * already compressed stay readable.
+     */
+    @InterfaceAudience.Public
+    public void setBodyCompressionEnabled(boolean enabled) throws CouchbaseLiteException {
+        if (enabled == bodyCompressionEnabled) {
+            return;
+        }
+        if (enabled && bodyCompressor == null) {
+            byte[] dictionary = trainBodyDictionary();
+            if (dictionary != null) {
+                if (setInfo(INFO_BODY_COMPRESSION_DICTIONARY, Base64.encodeBytes(dictionary)) <= 0) {
+                    throw new CouchbaseLiteException(Status.DB_ERROR);
+                }
+            }
+            bodyCompressor = new BodyCompressor(dictionary);
+        }
+        if (setInfo(INFO_BODY_COMPRESSION, enabled ? "1" : "0") <= 0) {
+            throw new CouchbaseLiteException(Status.DB_ERROR);
+        }
+        bodyCompressionEnabled = enabled;
+        if (enabled) {
+            startBodyCompressionMigration();
+        }
+    }
+
+    /**
+     * Encodings for stored revision bodies.
+     */
+    @InterfaceAudience.Public
+    public enum BodyFormat {
+        /** Text JSON, as sent over the wire. The default. */
+        JSON,
+        /** Jackson's binary Smile format; faster to parse, needs jackson-dataformat-smile. */
+        SMILE
+    }
+
+    /**
+     * The encoding used to store new revision bodies.
+     */
+    @InterfaceAudience.Public
+    public BodyFormat getBodyFormat() {
+        return bodyFormat;
+    }
+
+    /**
+     * Sets the encoding used to store new revision bodies. The setting is saved in the database.
+     * Existing revisions are not re-encoded; every stored body records its own format, so both
+     * can be read. This only affects local storage: documents are always replicated as JSON.
+     */
+    @InterfaceAudience.Public
+    public void setBodyFormat(BodyFormat format) throws CouchbaseLiteException {
+        if (format == BodyFormat.SMILE && !BodyEncoding.isSmileAvailable()) {
+            Log.w(Database.TAG, "Smile body format requested, but jackson-dataformat-smile is not available");
+            throw new CouchbaseLiteException(Status.BAD_REQUEST);
+        }
+        if (setInfo(INFO_BODY_FORMAT, format.name()) <= 0) {
+            throw new CouchbaseLiteException(Status.DB_ERROR);
+        }
+        bodyFormat = format;
+    }
+
 
     /** PRIVATE METHODS **/
 
@@ -960,43 +1358,10 @@ public final class Database {
     }
 
     /**
-     * @exclude
+     * Brings the schema up to SCHEMA_VERSION from the given version, in one transaction.
+     * On failure the database is closed.
      */
-    @InterfaceAudience.Private
-    public synchronized boolean open() {
-
-        if (open) {
-            return true;
-        }
-
-        // Create the storage engine.
-        SQLiteStorageEngineFactory sqliteStorageEngineFactoryDefault = manager.getContext().getSQLiteStorageEngineFactory();
-        database = sqliteStorageEngineFactoryDefault.createStorageEngine();
-
-        // Try to open the storage engine and stop if we fail.
-        if (database == null || !database.open(path)) {
-            String msg = "Unable to create a storage engine, fatal error";
-            Log.e(Database.TAG, msg);
-            throw new IllegalStateException(msg);
-        }
-
-        // Stuff we need to initialize every time the sqliteDb opens:
-        if (!initialize("PRAGMA foreign_keys = ON;")) {
-            Log.e(Database.TAG, "Error turning on foreign keys");
-            return false;
-        }
-
-        // Check the user_version number we last stored in the sqliteDb:
-        int dbVersion = database.getVersion();
-
-        // Incompatible version changes increment the hundreds' place:
-        if (dbVersion >= 200) {
-            Log.e(Database.TAG, "Database: Database version (%d) is newer than I know how to work with", dbVersion);
-            database.close();
-            return false;
-        }
-
-        boolean isNew = (dbVersion == 0);
+    private boolean upgradeSchema(int dbVersion) {
         boolean isSuccessful = false;
 
         // BEGIN TRANSACTION
@@ -1334,8 +1699,132 @@ public final class Database {
                 dbVersion = 20;
             }
 
-            if (isNew) {
-                optimizeSQLIndexes(); // runs ANALYZE query
+            if (dbVersion < 21) {
+                // Version 21: revs.json may hold a deflate-compressed body (see BodyCompressor),
+                // flagged by its first byte. Older versions would read such rows as bad JSON.
+                String upgradeSql = "PRAGMA user_version = 21";
+                if (!initialize(upgradeSql)) {
+                    return false;
+                }
+                dbVersion = 21;
+            }
+
+            if (dbVersion < 22) {
+                // Version 22: document expiration times, indexed for the expiry sweeper
+                String upgradeSql = "CREATE TABLE expiry ( " +
+                        "doc_id INTEGER PRIMARY KEY REFERENCES docs(doc_id) ON DELETE CASCADE, " +
+                        "expiration INTEGER NOT NULL); " +
+                        "CREATE INDEX expiry_by_expiration ON expiry(expiration); " +
+                        "PRAGMA user_version = 22";
+                if (!initialize(upgradeSql)) {
+                    return false;
+                }
+                dbVersion = 22;
+            }
+
+            if (dbVersion < 23) {
+                // Version 23: live statistics counters in the info table, kept up to date by
+                // triggers. (Trigger bodies contain ';' so they can't go through initialize().)
+                try {
+                    for (String sql : STATS_TRIGGERS) {
+                        database.execSQL(sql);
+                    }
+                    for (String sql : STATS_INITIAL_VALUES) {
+                        database.execSQL(sql);
+                    }
+                } catch (SQLException e) {
+                    Log.e(Database.TAG, "Error creating statistics triggers", e);
+                    close();
+                    return false;
+                }
+                String upgradeSql = "CREATE INDEX IF NOT EXISTS attachments_by_key ON attachments(key); " +
+                        "PRAGMA user_version = 23";
+                if (!initialize(upgradeSql)) {
+                    return false;
+                }
+                dbVersion = 23;
+            }
+
+            if (dbVersion < 24) {
+                // Version 24: blob_garbage lists the keys of attachment files whose last
+                // attachment row has gone, so they can be deleted a few at a time.
+                try {
+                    database.execSQL("CREATE TABLE IF NOT EXISTS blob_garbage (key BLOB PRIMARY KEY)");
+                    for (String sql : BLOB_GARBAGE_TRIGGERS) {
+                        database.execSQL(sql);
+                    }
+                } catch (SQLException e) {
+                    Log.e(Database.TAG, "Error creating blob_garbage triggers", e);
+                    close();
+                    return false;
+                }
+                if (!initialize("PRAGMA user_version = 24")) {
+                    return false;
+                }
+                dbVersion = 24;
+            }
+
+            if (dbVersion < 25) {
+                // Version 25: maps.collation_key holds each row's key encoded by CollatableKey,
+                // which SQLite can compare without calling the JSON collator. Existing rows
+                // don't have one, so the view indexes are rebuilt.
+                String upgradeSql = "ALTER TABLE maps ADD COLUMN collation_key BLOB; " +
+                        "CREATE INDEX IF NOT EXISTS maps_collation_keys ON maps(view_id, collation_key); " +
+                        "DELETE FROM maps; " +
+                        "UPDATE views SET lastSequence=0, total_docs=-1; " +
+                        "PRAGMA user_version = 25";
+                if (!initialize(upgradeSql)) {
+                    return false;
+                }
+                dbVersion = 25;
+            }
+
+            if (dbVersion < 26) {
+                // Version 26: materialized reduces. reduces holds the reduced value of each
+                // distinct key of a view listed in reduce_views; reduces_dirty lists the keys
+                // whose map rows have changed since.
+                String upgradeSql = "CREATE TABLE IF NOT EXISTS reduce_views ( " +
+                        "    view_id INTEGER PRIMARY KEY REFERENCES views(view_id) ON DELETE CASCADE); " +
+                        "CREATE TABLE IF NOT EXISTS reduces ( " +
+                        "    view_id INTEGER NOT NULL REFERENCES reduce_views(view_id) ON DELETE CASCADE, " +
+                        "    collation_key BLOB NOT NULL, " +
+                        "    value TEXT, " +
+                        "    PRIMARY KEY (view_id, collation_key)); " +
+                        "CREATE TABLE IF NOT EXISTS reduces_dirty ( " +
+                        "    view_id INTEGER NOT NULL REFERENCES reduce_views(view_id) ON DELETE CASCADE, " +
+                        "    collation_key BLOB NOT NULL, " +
+                        "    PRIMARY KEY (view_id, collation_key))";
+                if (!initialize(upgradeSql)) {
+                    return false;
+                }
+                try {
+                    for (String sql : REDUCES_DIRTY_TRIGGERS) {
+                        database.execSQL(sql);
+                    }
+                } catch (SQLException e) {
+                    Log.e(Database.TAG, "Error creating reduces_dirty triggers", e);
+                    close();
+                    return false;
+                }
+                if (!initialize("PRAGMA user_version = 26")) {
+                    return false;
+                }
+                dbVersion = 26;
+            }
+
+            if (dbVersion < 27) {
+                // Version 27: reduces.key keeps the JSON key of each row, since collation_key
+                // can't be decoded without loss. Existing rows don't have one, so the
+                // materialized reduces are rebuilt.
+                String upgradeSql = "ALTER TABLE reduces ADD COLUMN key TEXT; " +
+                        "DELETE FROM reduces_dirty; " +
+                        "DELETE FROM reduces; " +
+                        "DELETE FROM reduce_views; " +
+                        "PRAGMA user_version = 27";
+                if (!initialize(upgradeSql)) {
+                    return false;
+                }
+                dbVersion = 27;
             }
 
             // successfully updated database schema
@@ -1347,50 +1836,249 @@ public final class Database {
 
             // if failed, close database before return
             if (!isSuccessful) {
+                evictStatementCaches();
                 database.close();
             }
         }
+        return true;
+    }
 
-        // NOTE: Migrate attachment directory path if necessary
-        // https://github.com/couchbase/couchbase-lite-java-core/issues/604
-        File obsoletedAttachmentStorePath = new File(getObsoletedAttachmentStorePath());
-        if (obsoletedAttachmentStorePath != null && obsoletedAttachmentStorePath.exists() && obsoletedAttachmentStorePath.isDirectory()) {
-            File attachmentStorePath = new File(getAttachmentStorePath());
-            if (attachmentStorePath != null && !attachmentStorePath.exists()) {
-                boolean success = obsoletedAttachmentStorePath.renameTo(attachmentStorePath);
-                if (!success) {
-                    Log.e(Database.TAG, "Could not rename attachment store path");
-                    database.close();
-                    return false;
-                }
-            }
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized boolean open() {
+
+        if (open) {
+            return true;
+        }
+        long openStart = System.currentTimeMillis();
+        if (activeReplicators == null) {
+            // reopening after close()
+            activeReplicators = Collections.synchronizedSet(new HashSet<Replication>());
+            allReplicators = Collections.synchronizedSet(new HashSet<Replication>());
         }
 
-        // NOTE: obsoleted directory is /files/<database name>/attachments/xxxx
-        //       Needs to delete /files/<database name>/ too
-        File obsoletedAttachmentStoreParentPath = new File(getObsoletedAttachmentStoreParentPath());
-        if (obsoletedAttachmentStoreParentPath != null && obsoletedAttachmentStoreParentPath.exists()) {
-            obsoletedAttachmentStoreParentPath.delete();
+        // Create the storage engine.
+        SQLiteStorageEngineFactory sqliteStorageEngineFactoryDefault = manager.getContext().getSQLiteStorageEngineFactory();
+        database = sqliteStorageEngineFactoryDefault.createStorageEngine();
+
+        // Try to open the storage engine and stop if we fail.
+        if (database == null || !database.open(path)) {
+            String msg = "Unable to create a storage engine, fatal error";
+            Log.e(Database.TAG, msg);
+            throw new IllegalStateException(msg);
+        }
+        evictStatementCaches();
+
+        // Stuff we need to initialize every time the sqliteDb opens:
+        if (!initialize("PRAGMA foreign_keys = ON;")) {
+            Log.e(Database.TAG, "Error turning on foreign keys");
+            return false;
+        }
+
+        // Check the user_version number we last stored in the sqliteDb:
+        int dbVersion = database.getVersion();
+
+        // Incompatible version changes increment the hundreds' place:
+        if (dbVersion >= 200) {
+            Log.e(Database.TAG, "Database: Database version (%d) is newer than I know how to work with", dbVersion);
+            database.close();
+            return false;
+        }
+
+        // The upgrade chain (and its transaction) is only needed if the schema isn't current
+        if (dbVersion < SCHEMA_VERSION && !upgradeSchema(dbVersion)) {
+            return false;
+        }
+
+        if (!checkCollatorVersion()) {
+            return false;
+        }
+
+        // NOTE: Migrate attachment directory path if necessary
+        // https://github.com/couchbase/couchbase-lite-java-core/issues/604
+        File obsoletedAttachmentStorePath = new File(getObsoletedAttachmentStorePath());
+        if (obsoletedAttachmentStorePath != null && obsoletedAttachmentStorePath.exists() && obsoletedAttachmentStorePath.isDirectory()) {
+            File attachmentStorePath = new File(getAttachmentStorePath());
+            if (attachmentStorePath != null && !attachmentStorePath.exists()) {
+                boolean success = obsoletedAttachmentStorePath.renameTo(attachmentStorePath);
+                if (!success) {
+                    Log.e(Database.TAG, "Could not rename attachment store path");
+                    database.close();
+                    return false;
+                }
+            }
+        }
+
+        // NOTE: obsoleted directory is /files/<database name>/attachments/xxxx
+        //       Needs to delete /files/<database name>/ too
+        File obsoletedAttachmentStoreParentPath = new File(getObsoletedAttachmentStoreParentPath());
+        if (obsoletedAttachmentStoreParentPath != null && obsoletedAttachmentStoreParentPath.exists()) {
+            obsoletedAttachmentStoreParentPath.delete();
         }
 
         try {
+            // Filenames are migrated before anything can read, write or compact attachments
             if (isBlobstoreMigrated() || !manager.isAutoMigrateBlobStoreFilename()) {
                 attachments = new BlobStore(getAttachmentStorePath(), false);
             } else {
                 attachments = new BlobStore(getAttachmentStorePath(), true);
                 markBlobstoreMigrated();
             }
-
         } catch (IllegalArgumentException e) {
             Log.e(Database.TAG, "Could not initialize attachment store", e);
             database.close();
             return false;
         }
 
+        openReadConnectionPool(sqliteStorageEngineFactoryDefault);
+
+        if (manager.isGroupCommit()) {
+            groupCommitter = new GroupCommitter(this, manager.getGroupCommitWindowMs());
+        }
+
+        loadBodyCompressionSettings();
+        loadBodyFormatSetting();
+
         open = true;
+
+        if (bodyCompressionEnabled) {
+            startBodyCompressionMigration();  // resumes an interrupted one, if any
+        }
+        scheduleExpirySweep(getNextExpiration());
+        finishOpeningInBackground();
+
+        Log.v(Database.TAG, "%s: opened in %d ms (schema was version %d)", this,
+                System.currentTimeMillis() - openStart, dbVersion);
         return true;
     }
 
+    /**
+     * Resets the view indexes if the collator has changed since they were built, since their
+     * collation keys would no longer sort like the collator does.
+     */
+    private boolean checkCollatorVersion() {
+        String collatorVersion = CollatableKey.collatorVersion();
+        String indexedVersion = infoForKey(INFO_COLLATOR_VERSION);
+        if (collatorVersion.equals(indexedVersion)) {
+            return true;
+        }
+        if (indexedVersion != null && indexedVersion.endsWith("/" + collatorVersion)) {
+            // Older versions prefixed the Java version; the collator itself hasn't changed
+            return setInfo(INFO_COLLATOR_VERSION, collatorVersion) > 0;
+        }
+        if (indexedVersion != null) {
+            Log.i(Database.TAG, "%s: collator changed from %s to %s; view indexes will be rebuilt",
+                    this, indexedVersion, collatorVersion);
+        }
+        boolean isSuccessful = false;
+        if (!beginTransaction()) {
+            database.close();
+            return false;
+        }
+        try {
+            database.execSQL("DELETE FROM reduce_views");
+            database.execSQL("DELETE FROM reduces");
+            database.execSQL("DELETE FROM reduces_dirty");
+            database.execSQL("DELETE FROM maps");
+            database.execSQL("UPDATE views SET lastSequence=0, total_docs=-1");
+            isSuccessful = setInfo(INFO_COLLATOR_VERSION, collatorVersion) > 0;
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error resetting view indexes", e);
+        } finally {
+            endTransaction(isSuccessful);
+        }
+        if (!isSuccessful) {
+            database.close();
+        }
+        return isSuccessful;
+    }
+
+    /**
+     * Open-time housekeeping that doesn't have to hold up open(): refreshing the SQL index
+     * statistics.
+     */
+    private void finishOpeningInBackground() {
+        manager.runAsync(new Runnable() {
+            @Override
+            public void run() {
+                if (!isOpen()) {
+                    return;
+                }
+                try {
+                    optimizeSQLIndexes(); // runs ANALYZE query, if it's been a while
+                } catch (Exception e) {
+                    Log.w(Database.TAG, "%s: error finishing open: %s", Database.this, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Switches the database to WAL mode and sets up the read connection pool, if
+     * ManagerOptions asks for one. Failure just leaves all reads on the main connection.
+     */
+    private void openReadConnectionPool(SQLiteStorageEngineFactory factory) {
+        int poolSize = manager.getReadConnectionPoolSize();
+        if (poolSize <= 0) {
+            return;
+        }
+        if (!isWALAvailable()) {
+            Log.w(Database.TAG, "WAL is not available, not using read connections");
+            return;
+        }
+        String journalMode = null;
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("PRAGMA journal_mode=WAL", null);
+            if (cursor.moveToNext()) {
+                journalMode = cursor.getString(0);
+            }
+        } catch (SQLException e) {
+            Log.w(Database.TAG, "Unable to enable WAL", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (!"wal".equalsIgnoreCase(journalMode)) {
+            Log.w(Database.TAG, "Database is not in WAL mode (%s), not using read connections", journalMode);
+            return;
+        }
+        readConnectionPool = new SQLiteConnectionPool(factory, path, poolSize);
+    }
+
+    /**
+     * Returns a connection to run read-only queries on. This is a pooled read connection when
+     * the pool is enabled, there's no transaction open on this thread (whose uncommitted changes
+     * a reader wouldn't see) and one is free; otherwise it's the main connection.
+     * Always pass the result to releaseReadConnection() when done, after closing any cursors.
+     *
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    SQLiteStorageEngine acquireReadConnection() {
+        SQLiteConnectionPool pool = readConnectionPool;
+        if (pool != null && transactionLevel.get() == 0) {
+            SQLiteStorageEngine reader = pool.acquire();
+            if (reader != null) {
+                return reader;
+            }
+        }
+        return database;
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    void releaseReadConnection(SQLiteStorageEngine connection) {
+        if (connection != null && connection != database && readConnectionPool != null) {
+            readConnectionPool.release(connection);
+        }
+    }
+
     private boolean isBlobstoreMigrated() {
         Map<String, Object> props = getExistingLocalDocument("_blobstore");
         if (props != null && props.containsKey("blobstoreMigrated"))
@@ -1414,6 +2102,16 @@ public final class Database {
             return false;
         }
 
+        // Finish the queued async writes while everything is still open
+        WriteQueue queue;
+        synchronized (this) {
+            queue = writeQueue;
+            writeQueue = null;
+        }
+        if (queue != null) {
+            queue.close();
+        }
+
         for(DatabaseListener listener : databaseListeners){
             listener.databaseClosing();
         }
@@ -1463,6 +2161,25 @@ public final class Database {
 
         allReplicators = null;
 
+        groupCommitter = null;
+
+        stopIncrementalCompaction();
+        cancelExpirySweep();
+
+        if (readConnectionPool != null) {
+            readConnectionPool.close();
+            readConnectionPool = null;
+        }
+
+        docNumericIDCache.clear();
+        revisionTrees.evictAll();
+
+        bodyCompressionEnabled = false;
+        bodyCompressor = null;
+        bodyFormat = BodyFormat.JSON;
+
+        evictStatementCaches();
+
         if (database != null && database.isOpen()) {
             database.close();
         }
@@ -1490,6 +2207,100 @@ public final class Database {
         return database;
     }
 
+    /**
+     * Returns a cached compiled statement for the given SQL, compiling it on first use.
+     * The SQL must be a fixed string; bind the variable parts. Statements are cached per
+     * thread, so no locking is needed around them; give the statement back with
+     * releaseStatement() (in a finally block) when done with it.
+     *
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    SQLiteStatement getCompiledStatement(String sql) throws SQLException {
+        return statementCacheForThread().acquire(sql);
+    }
+
+    /**
+     * Gives back a statement returned by getCompiledStatement() on this thread.
+     *
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    void releaseStatement(SQLiteStatement statement) {
+        SQLiteStatementCache cache;
+        synchronized (statementCaches) {
+            cache = statementCaches.get(Thread.currentThread());
+        }
+        if (cache != null && cache.release(statement)) {
+            return;
+        }
+        // Acquired before the caches were evicted (the database was closed meanwhile)
+        synchronized (statementCaches) {
+            Iterator<SQLiteStatementCache> it = retiredStatementCaches.iterator();
+            while (it.hasNext()) {
+                SQLiteStatementCache retired = it.next();
+                if (retired.release(statement)) {
+                    if (!retired.isInUse()) {
+                        it.remove();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private SQLiteStatementCache statementCacheForThread() {
+        List<SQLiteStatementCache> dead = null;
+        SQLiteStatementCache cache;
+        synchronized (statementCaches) {
+            Thread thread = Thread.currentThread();
+            cache = statementCaches.get(thread);
+            if (cache == null) {
+                // Drop the caches of threads that have gone away while we're here
+                Iterator<Map.Entry<Thread, SQLiteStatementCache>> it = statementCaches.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Thread, SQLiteStatementCache> entry = it.next();
+                    if (!entry.getKey().isAlive()) {
+                        if (dead == null) {
+                            dead = new ArrayList<SQLiteStatementCache>();
+                        }
+                        dead.add(entry.getValue());
+                        it.remove();
+                    }
+                }
+                cache = new SQLiteStatementCache(database);
+                statementCaches.put(thread, cache);
+            }
+        }
+        if (dead != null) {
+            for (SQLiteStatementCache deadCache : dead) {
+                deadCache.evictAll();
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Closes all cached statements (those still in use are closed when released).
+     */
+    private void evictStatementCaches() {
+        synchronized (statementCaches) {
+            for (SQLiteStatementCache cache : statementCaches.values()) {
+                cache.evictAll();
+                if (cache.isInUse()) {
+                    retiredStatementCaches.add(cache);
+                }
+            }
+            statementCaches.clear();
+            Iterator<SQLiteStatementCache> it = retiredStatementCaches.iterator();
+            while (it.hasNext()) {
+                if (!it.next().isInUse()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
     /**
      * @exclude
      */
@@ -1512,8 +2323,11 @@ public final class Database {
     @InterfaceAudience.Private
     public long totalDataSize() {
         File f = new File(path);
-        long size = f.length() + attachments.totalDataSize();
-        return size;
+        long attachmentBytes = statForKey(STATS_ATTACHMENT_BYTES);
+        if (attachmentBytes < 0) {
+            attachmentBytes = attachments.totalDataSize();
+        }
+        return f.length() + attachmentBytes;
     }
 
     /**
@@ -1550,6 +2364,7 @@ public final class Database {
             }
             Log.v(Log.TAG_DATABASE, "%s Begin transaction (level %d)", Thread.currentThread().getName(), tLevel);
             transactionLevel.set(++tLevel);
+            transactionChangeMarks.get().addLast(changesToNotify.size());
         } catch (SQLException e) {
             Log.e(Log.TAG_DATABASE, Thread.currentThread().getName() + " Error calling beginTransaction()", e);
             return false;
@@ -1570,13 +2385,30 @@ public final class Database {
         assert (tLevel > 0);
 
         transactionLevel.set(--tLevel);
+        LinkedList<Integer> changeMarks = transactionChangeMarks.get();
+        int changeMark = changeMarks.isEmpty() ? 0 : changeMarks.removeLast();
+
+        if (!commit) {
+            // Forget doc IDs and revisions this transaction may have inserted.
+            pendingDocNumericIDs.get().clear();
+            docNumericIDCache.clear();
+            revisionTrees.evictAll();
+        }
 
         // Outer (level 0) transaction. Use SQLiteDatabase.setTransactionSuccessful() and SQLiteDatabase.endTransaction()
         if (tLevel == 0) {
             if (commit) {
                 Log.v(Log.TAG_DATABASE, "%s Committing transaction (level %d)", Thread.currentThread().getName(), tLevel);
+                Map<String, Long> pending = pendingDocNumericIDs.get();
+                if (!pending.isEmpty()) {
+                    pendingDocNumericIDs.remove();  // a failed commit mustn't leave them for the next one
+                }
                 database.setTransactionSuccessful();
                 database.endTransaction();
+                // The rows are committed now, so the doc IDs found in the transaction can be shared
+                for (Map.Entry<String, Long> entry : pending.entrySet()) {
+                    docNumericIDCache.put(entry.getKey(), entry.getValue());
+                }
             } else {
                 Log.v(Log.TAG_DATABASE, "%s CANCEL transaction (level %d)", Thread.currentThread().getName(), tLevel);
                 try {
@@ -1608,7 +2440,7 @@ public final class Database {
             }
         }
 
-        storageExitedTransaction(commit);
+        storageExitedTransaction(commit, changeMark);
 
         return true;
     }
@@ -1663,19 +2495,16 @@ public final class Database {
     @InterfaceAudience.Private
     public String infoForKey(String key) {
         String result = null;
-        Cursor cursor = null;
         try {
-            String[] args = {key};
-            cursor = database.rawQuery("SELECT value FROM info WHERE key=?", args);
-            if (cursor.moveToNext()) {
-                result = cursor.getString(0);
+            SQLiteStatement statement = getCompiledStatement("SELECT value FROM info WHERE key=?");
+            try {
+                statement.bindString(1, key);
+                result = statement.simpleQueryForString();
+            } finally {
+                releaseStatement(statement);
             }
         } catch (SQLException e) {
             Log.e(TAG, "Error querying " + key, e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
         }
         return result;
     }
@@ -1829,8 +2658,24 @@ public final class Database {
      */
     @InterfaceAudience.Private
     public void expandStoredJSONIntoRevisionWithAttachments(byte[] json, RevisionInternal rev, EnumSet<TDContentOptions> contentOptions) {
+        json = decodeDocumentJSON(json);
         Map<String,Object> extra = extraPropertiesForRevision(rev, contentOptions);
-        if(json != null && json.length > 0) {
+        if (BodyEncoding.isSmile(json)) {
+            // Can't splice into binary data; parse it, so rev.getJson() will produce JSON
+            Map<String, Object> properties = null;
+            try {
+                properties = BodyEncoding.mapperFor(json).readValue(json, Map.class);
+            } catch (Exception e) {
+                Log.e(Database.TAG, "Error parsing stored revision body", e);
+            }
+            if (properties != null) {
+                properties.putAll(extra);
+                rev.setProperties(properties);
+            } else {
+                rev.setProperties(extra);
+            }
+        }
+        else if(json != null && json.length > 0) {
             rev.setJson(appendDictToJSON(json, extra));
         }
         else {
@@ -1850,13 +2695,14 @@ public final class Database {
         RevisionInternal rev = new RevisionInternal(docId, revId, deleted);
         rev.setSequence(sequence);
         Map<String, Object> extra = extraPropertiesForRevision(rev, contentOptions);
+        json = decodeDocumentJSON(json);
         if (json == null) {
             return extra;
         }
 
         Map<String, Object> docProperties = null;
         try {
-            docProperties = Manager.getObjectMapper().readValue(json, Map.class);
+            docProperties = BodyEncoding.mapperFor(json).readValue(json, Map.class);
             docProperties.putAll(extra);
             return docProperties;
         } catch (Exception e) {
@@ -1874,6 +2720,7 @@ public final class Database {
         RevisionInternal result = null;
         String sql;
 
+        SQLiteStorageEngine reader = acquireReadConnection();
         Cursor cursor = null;
         try {
             cursor = null;
@@ -1885,13 +2732,13 @@ public final class Database {
                 sql = "SELECT " + cols + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id AND revid=? LIMIT 1";
                 //TODO: mismatch w iOS: {sql = "SELECT " + cols + " FROM revs WHERE revs.doc_id=? AND revid=? AND json notnull LIMIT 1";}
                 String[] args = {id, rev};
-                cursor = database.rawQuery(sql, args);
+                cursor = reader.rawQuery(sql, args);
             }
             else {
                 sql = "SELECT " + cols + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id and current=1 and deleted=0 ORDER BY revid DESC LIMIT 1";
                 //TODO: mismatch w iOS: {sql = "SELECT " + cols + " FROM revs WHERE revs.doc_id=? and current=1 and deleted=0 ORDER BY revid DESC LIMIT 1";}
                 String[] args = {id};
-                cursor = database.rawQuery(sql, args);
+                cursor = reader.rawQuery(sql, args);
             }
 
             if(cursor.moveToNext()) {
@@ -1917,6 +2764,7 @@ public final class Database {
             if(cursor != null) {
                 cursor.close();
             }
+            releaseReadConnection(reader);
         }
         return result;
     }
@@ -1977,30 +2825,52 @@ public final class Database {
      */
     @InterfaceAudience.Private
     public long getDocNumericID(String docId) {
-        Cursor cursor = null;
-        String[] args = { docId };
-
-        long result = -1;
+        if (transactionLevel.get() > 0) {
+            Long pending = pendingDocNumericIDs.get().get(docId);
+            if (pending != null) {
+                return pending;
+            }
+        }
+        long result = docNumericIDCache.get(docId);
+        if (result > 0) {
+            return result;
+        }
+        result = -1;
         try {
-            cursor = database.rawQuery("SELECT doc_id FROM docs WHERE docid=?", args);
-
-            if(cursor.moveToNext()) {
-                result = cursor.getLong(0);
+            SQLiteStatement statement = getCompiledStatement("SELECT doc_id FROM docs WHERE docid=?");
+            try {
+                statement.bindString(1, docId);
+                result = statement.simpleQueryForLong();  // 0 if there's no such doc
+            } finally {
+                releaseStatement(statement);
             }
-            else {
-                result = 0;
+            if (result > 0) {
+                cacheDocNumericID(docId, result);
             }
         } catch (Exception e) {
             Log.e(Database.TAG, "Error getting doc numeric id", e);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
         }
 
         return result;
     }
 
+    /**
+     * Remembers a doc's numeric ID. Inside a transaction the row may not be committed yet, so it
+     * isn't shared with other threads until the outermost transaction commits.
+     */
+    private void cacheDocNumericID(String docId, long docNumericID) {
+        if (transactionLevel.get() > 0) {
+            pendingDocNumericIDs.get().put(docId, docNumericID);
+        } else {
+            docNumericIDCache.put(docId, docNumericID);
+        }
+    }
+
+    private void forgetDocNumericID(String docId) {
+        pendingDocNumericIDs.get().remove(docId);
+        docNumericIDCache.remove(docId);
+    }
+
     /** HISTORY: **/
 
     /**
@@ -2020,7 +2890,7 @@ public final class Database {
                     "WHERE doc_id=? ORDER BY sequence DESC";
         }
 
-        String[] args = { Long.toString(docNumericID) };
+        Object[] args = { docNumericID };
         Cursor cursor = null;
 
         cursor = database.rawQuery(sql, args);
@@ -2077,7 +2947,7 @@ public final class Database {
         List<String> result = new ArrayList<String>();
         Cursor cursor = null;
         try {
-            String[] args = { Long.toString(docIdNumeric) };
+            Object[] args = { docIdNumeric };
             cursor = database.rawQuery("SELECT revid FROM revs WHERE doc_id=? AND current " +
                                            "ORDER BY revid DESC OFFSET 1", args);
             cursor.moveToNext();
@@ -2118,7 +2988,7 @@ public final class Database {
         String sql = "SELECT revid, sequence FROM revs WHERE doc_id=? and revid < ?" +
         " and deleted=0 and json not null" +
         " ORDER BY sequence DESC LIMIT ?";
-        String[] args = {Long.toString(docNumericID),generation+"-",Integer.toString(sqlLimit)};
+        Object[] args = {docNumericID,generation+"-",sqlLimit};
 
         Cursor cursor = null;
         try {
@@ -2159,7 +3029,7 @@ public final class Database {
         String sql = "SELECT revid FROM revs " +
                 "WHERE doc_id=? and revid in (" + quotedRevIds + ") and revid <= ? " +
                 "ORDER BY revid DESC LIMIT 1";
-        String[] args = {Long.toString(docNumericID)};
+        Object[] args = {docNumericID};
 
         Cursor cursor = null;
         try {
@@ -2200,7 +3070,7 @@ public final class Database {
 
         String sql = "SELECT sequence, parent, revid, deleted, json isnull FROM revs " +
                     "WHERE doc_id=? ORDER BY sequence DESC";
-        String[] args = { Long.toString(docNumericId) };
+        Object[] args = { docNumericId };
         Cursor cursor = null;
 
         List<RevisionInternal> result;
@@ -2360,6 +3230,40 @@ public final class Database {
      */
     @InterfaceAudience.Private
     public RevisionList changesSince(long lastSeq, ChangesOptions options, ReplicationFilter filter, Map<String, Object> filterParams) {
+        final RevisionList changes = new RevisionList();
+        changesSince(lastSeq, options, filter, filterParams, new ChangesCallback() {
+            @Override
+            public boolean onChange(RevisionInternal rev) {
+                changes.add(rev);
+                return true;
+            }
+        });
+        return changes;
+    }
+
+    /**
+     * Receives the revisions found by changesSince(), one at a time, while the query runs.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public interface ChangesCallback {
+        /**
+         * @return false to stop the enumeration.
+         */
+        boolean onChange(RevisionInternal rev);
+    }
+
+    /**
+     * Streaming form of changesSince(): hands each change to the callback as it is read from the
+     * cursor, in the same order and with the same limit as the RevisionList form, without
+     * collecting them first. When sorting by sequence the order (and, absent a filter, the limit)
+     * is applied by SQLite, so only the rows returned are ever read.
+     *
+     * @return The number of revisions passed to the callback, or -1 on a database error.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public int changesSince(long lastSeq, ChangesOptions options, ReplicationFilter filter, Map<String, Object> filterParams, ChangesCallback callback) {
         // http://wiki.apache.org/couchdb/HTTP_database_API#Changes
         if (options == null) {
             options = new ChangesOptions();
@@ -2371,25 +3275,45 @@ public final class Database {
             additionalSelectColumns = ", json";
         }
 
-        String sql = "SELECT sequence, revs.doc_id, docid, revid, deleted" + additionalSelectColumns + " FROM revs, docs "
-                + "WHERE sequence > ? AND current=1 "
-                + "AND revs.doc_id = docs.doc_id "
-                + "ORDER BY revs.doc_id, revid DESC";
-        String[] args = {Long.toString(lastSeq)};
+        // Without conflicts, each document's change is its highest current revision with a
+        // sequence past lastSeq. Sorted by doc, that's the first row of each doc; sorted by
+        // sequence, the other rows have to be excluded in SQL.
+        boolean skipConflictsInSQL = options.isSortBySequence() && !options.isIncludeConflicts();
+        boolean limitInSQL = (filter == null) && (options.isSortBySequence() || options.isIncludeConflicts());
+        int limit = options.getLimit();
+
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT sequence, revs.doc_id, docid, revid, deleted").append(additionalSelectColumns);
+        sql.append(" FROM revs, docs WHERE sequence > ? AND current=1 AND revs.doc_id = docs.doc_id ");
+        List<Object> args = new ArrayList<Object>();
+        args.add(lastSeq);
+        if (skipConflictsInSQL) {
+            sql.append("AND NOT EXISTS (SELECT 1 FROM revs AS other WHERE other.doc_id = revs.doc_id " +
+                    "AND other.current=1 AND other.sequence > ? AND other.revid > revs.revid) ");
+            args.add(lastSeq);
+        }
+        if (options.isSortBySequence()) {
+            sql.append("ORDER BY sequence");
+        } else {
+            sql.append("ORDER BY revs.doc_id, revid DESC");
+        }
+        if (limitInSQL && limit < Integer.MAX_VALUE) {
+            sql.append(" LIMIT ?");
+            args.add(Math.max(limit, 0));
+        }
+
+        SQLiteStorageEngine reader = acquireReadConnection();
         Cursor cursor = null;
-        RevisionList changes = null;
+        int count = 0;
 
         try {
-            cursor = database.rawQuery(sql, args);
-            cursor.moveToNext();
-            changes = new RevisionList();
+            cursor = reader.rawQuery(sql.toString(), args.toArray());
             long lastDocId = 0;
-            while (!cursor.isAfterLast()) {
-                if (!options.isIncludeConflicts()) {
+            while (count < limit && cursor.moveToNext()) {
+                if (!options.isIncludeConflicts() && !skipConflictsInSQL) {
                     // Only count the first rev for a given doc (the rest will be losing conflicts):
                     long docNumericId = cursor.getLong(1);
                     if (docNumericId == lastDocId) {
-                        cursor.moveToNext();
                         continue;
                     }
                     lastDocId = docNumericId;
@@ -2401,23 +3325,22 @@ public final class Database {
                     expandStoredJSONIntoRevisionWithAttachments(cursor.getBlob(5), rev, options.getContentOptions());
                 }
                 if (runFilter(filter, filterParams, rev)) {
-                    changes.add(rev);
+                    count++;
+                    if (!callback.onChange(rev)) {
+                        break;
+                    }
                 }
-                cursor.moveToNext();
             }
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error looking for changes", e);
+            return -1;
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
+            releaseReadConnection(reader);
         }
-
-        if (options.isSortBySequence()) {
-            changes.sortBySequence();
-        }
-        changes.limit(options.getLimit());
-        return changes;
+        return count;
     }
 
     /**
@@ -2476,15 +3399,71 @@ public final class Database {
     }
 
     /**
+     * Brings the indexes of the given views up to date in one transaction. Each revision added
+     * since the views were last indexed is read and parsed once, and every stale view's map
+     * function is called on the same properties. Views that share a lastSequenceIndexed are
+     * indexed in the same pass, so in the usual case (views that are always updated together)
+     * there is a single pass. Views without a map function are skipped. The materialized reduces
+     * of the views that have them (see View.setReduceMaterialized()) are updated in the same
+     * transaction.
      * @exclude
      */
     @InterfaceAudience.Private
-    public List<QueryRow> queryViewNamed(String viewName, QueryOptions options, List<Long> outLastSequence) throws CouchbaseLiteException {
-
-        long before = System.currentTimeMillis();
-        long lastSequence = 0;
-        List<QueryRow> rows = null;
-
+    public void updateIndexes(List<View> views) throws CouchbaseLiteException {
+        long dbMaxSequence = getLastSequenceNumber();
+        Map<Long, List<View>> viewsBySequence = new TreeMap<Long, List<View>>();
+        List<View> reduceViews = new ArrayList<View>();
+        for (View view : views) {
+            if (view.getMap() == null) {
+                continue;
+            }
+            long last = view.getLastSequenceIndexed();
+            if (last >= dbMaxSequence) {
+                // Its map rows may still have changed, e.g. by a purge
+                if (MaterializedReduce.isEnabled(view) && !MaterializedReduce.isUpToDate(database, view.getViewId())) {
+                    reduceViews.add(view);
+                }
+                continue;
+            }
+            reduceViews.add(view);
+            List<View> group = viewsBySequence.get(last);
+            if (group == null) {
+                group = new ArrayList<View>();
+                viewsBySequence.put(last, group);
+            }
+            group.add(view);
+        }
+        if (reduceViews.isEmpty()) {
+            return;
+        }
+
+        if (!beginTransaction()) {
+            throw new CouchbaseLiteException(Status.DB_ERROR);
+        }
+        boolean success = false;
+        try {
+            for (List<View> group : viewsBySequence.values()) {
+                new ViewIndexer(this, group).run();
+            }
+            for (View view : reduceViews) {
+                new MaterializedReduce(this, view).update();
+            }
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public List<QueryRow> queryViewNamed(String viewName, QueryOptions options, List<Long> outLastSequence) throws CouchbaseLiteException {
+
+        long before = System.currentTimeMillis();
+        long lastSequence = 0;
+        List<QueryRow> rows = null;
+
         if (viewName != null && viewName.length() > 0) {
             final View view = getView(viewName);
             if (view == null) {
@@ -2624,117 +3603,25 @@ public final class Database {
         if(options == null) {
             options = new QueryOptions();
         }
-        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
 
         long updateSeq = 0;
         if(options.isUpdateSeq()) {
             updateSeq = getLastSequenceNumber();  // TODO: needs to be atomic with the following SELECT
         }
 
-        StringBuffer sql = new StringBuffer("SELECT revs.doc_id, docid, revid, sequence");
-        if (options.isIncludeDocs()) {
-            sql.append(", json");
-        }
-        if (includeDeletedDocs) {
-            sql.append(", deleted");
-        }
-        sql.append(" FROM revs, docs WHERE");
-        if (options.getKeys() != null) {
-            if (options.getKeys().size() == 0) {
-                return result;
-            }
-            String commaSeperatedIds = joinQuotedObjects(options.getKeys());
-            sql.append(String.format(" revs.doc_id IN (SELECT doc_id FROM docs WHERE docid IN (%s)) AND", commaSeperatedIds));
-        }
-        sql.append(" docs.doc_id = revs.doc_id AND current=1");
-        if (!includeDeletedDocs) {
-            sql.append(" AND deleted=0");
-        }
-        List<String> args = new ArrayList<String>();
-        Object minKey = options.getStartKey();
-        Object maxKey = options.getEndKey();
-        boolean inclusiveMin = true;
-        boolean inclusiveMax = options.isInclusiveEnd();
-        if (options.isDescending()) {
-            minKey = maxKey;
-            maxKey = options.getStartKey();
-            inclusiveMin = inclusiveMax;
-            inclusiveMax = true;
-        }
-        if (minKey != null) {
-            assert(minKey instanceof String);
-            sql.append((inclusiveMin ? " AND docid >= ?" :  " AND docid > ?"));
-            args.add((String)minKey);
-        }
-        if (maxKey != null) {
-            assert(maxKey instanceof String);
-            maxKey = View.keyForPrefixMatch(maxKey, options.getPrefixMatchLevel());
-            sql.append((inclusiveMax ? " AND docid <= ?" :  " AND docid < ?"));
-            args.add((String)maxKey);
+        if (options.getKeys() != null && options.getKeys().size() == 0) {
+            return result;
         }
 
-        sql.append(
-                String.format(
-                        " ORDER BY docid %s, %s revid DESC LIMIT ? OFFSET ?",
-                        (options.isDescending() ? "DESC" : "ASC"),
-                        (includeDeletedDocs ? "deleted ASC," : "")
-                )
-        );
-
-        args.add(Integer.toString(options.getLimit()));
-        args.add(Integer.toString(options.getSkip()));
-
-        Cursor cursor = null;
         Map<String, QueryRow> docs = new HashMap<String, QueryRow>();
-
-
+        AllDocsEnumerator enumerator = null;
         try {
-            cursor = database.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
-
-            boolean keepGoing = cursor.moveToNext();
-
-            while(keepGoing) {
-
-                long docNumericID = cursor.getLong(0);
-                String docId = cursor.getString(1);
-                String revId = cursor.getString(2);
-                long sequenceNumber = cursor.getLong(3);
-                boolean deleted = includeDeletedDocs && cursor.getInt(getDeletedColumnIndex(options))>0;
-                Map<String, Object> docContents = null;
-                if (options.isIncludeDocs()) {
-                    byte[] json = cursor.getBlob(4);
-                    docContents = documentPropertiesFromJSON(json, docId, revId, deleted, sequenceNumber, options.getContentOptions());
-                }
-
-                // Iterate over following rows with the same doc_id -- these are conflicts.
-                // Skip them, but collect their revIDs if the 'conflicts' option is set:
-                List<String> conflicts = new ArrayList<String>();
-                while (((keepGoing = cursor.moveToNext()) == true) && cursor.getLong(0) == docNumericID) {
-                    if (options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS || options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS) {
-                        if (conflicts.isEmpty()) {
-                            conflicts.add(revId);
-                        }
-                        conflicts.add(cursor.getString(2));
-                    }
-                }
-
-                if (options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS && conflicts.isEmpty()) {
-                    continue;
-                }
-
-                Map<String, Object> value = new HashMap<String, Object>();
-                value.put("rev", revId);
-                value.put("_conflicts", conflicts);
-                if (includeDeletedDocs){
-                    value.put("deleted", (deleted ? true : null));
-                }
-                QueryRow change = new QueryRow(docId, sequenceNumber, docId, value, docContents);
-                change.setDatabase(this);
+            enumerator = getAllDocsEnumerator(options);
+            while (enumerator.hasNext()) {
+                QueryRow change = enumerator.next();
                 if (options.getKeys() != null) {
-                    docs.put(docId, change);
-                }
-                // TODO: In the future, we need to implement CBLRowPassesFilter() in CBLView+Querying.m
-                else if (options.getPostFilter() == null || options.getPostFilter().apply(change)) {
+                    docs.put(change.getDocumentId(), change);
+                } else {
                     rows.add(change);
                 }
             }
@@ -2774,8 +3661,8 @@ public final class Database {
             Log.e(Database.TAG, "Error getting all docs", e);
             throw new CouchbaseLiteException("Error getting all docs", e, new Status(Status.INTERNAL_SERVER_ERROR));
         } finally {
-            if(cursor != null) {
-                cursor.close();
+            if (enumerator != null) {
+                enumerator.close();
             }
         }
 
@@ -2789,6 +3676,89 @@ public final class Database {
         return result;
     }
 
+    /**
+     * Runs an all-docs query and returns an enumerator that reads its rows lazily from the
+     * cursor. The caller must read it to the end or close it. With explicit keys, only the
+     * documents that exist are returned, in docID order.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public AllDocsEnumerator getAllDocsEnumerator(QueryOptions options) throws CouchbaseLiteException {
+        if(options == null) {
+            options = new QueryOptions();
+        }
+        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+
+        StringBuffer sql = new StringBuffer("SELECT revs.doc_id, docid, revid, sequence");
+        if (options.isIncludeDocs()) {
+            sql.append(", json");
+        }
+        if (includeDeletedDocs) {
+            sql.append(", deleted");
+        }
+        sql.append(" FROM revs, docs WHERE");
+        if (options.getKeys() != null) {
+            String commaSeperatedIds = joinQuotedObjects(options.getKeys());
+            sql.append(String.format(" revs.doc_id IN (SELECT doc_id FROM docs WHERE docid IN (%s)) AND", commaSeperatedIds));
+        }
+        sql.append(" docs.doc_id = revs.doc_id AND current=1");
+        if (!includeDeletedDocs) {
+            sql.append(" AND deleted=0");
+        }
+        List<Object> args = new ArrayList<Object>();
+        Object minKey = options.getStartKey();
+        Object maxKey = options.getEndKey();
+        boolean inclusiveMin = true;
+        boolean inclusiveMax = options.isInclusiveEnd();
+        if (options.isDescending()) {
+            minKey = maxKey;
+            maxKey = options.getStartKey();
+            inclusiveMin = inclusiveMax;
+            inclusiveMax = true;
+        }
+        if (minKey != null) {
+            assert(minKey instanceof String);
+            sql.append((inclusiveMin ? " AND docid >= ?" :  " AND docid > ?"));
+            args.add((String)minKey);
+        }
+        if (maxKey != null) {
+            assert(maxKey instanceof String);
+            maxKey = View.keyForPrefixMatch(maxKey, options.getPrefixMatchLevel());
+            sql.append((inclusiveMax ? " AND docid <= ?" :  " AND docid < ?"));
+            args.add((String)maxKey);
+        }
+        // Keyset pagination: resume after the last docID of the previous page. Unlike skip, this
+        // seeks straight to the position in the docs index.
+        if (options.getStartAfterDocId() != null) {
+            sql.append(options.isDescending() ? " AND docid < ?" : " AND docid > ?");
+            args.add(options.getStartAfterDocId());
+        }
+
+        sql.append(
+                String.format(
+                        " ORDER BY docid %s, %s revid DESC LIMIT ? OFFSET ?",
+                        (options.isDescending() ? "DESC" : "ASC"),
+                        (includeDeletedDocs ? "deleted ASC," : "")
+                )
+        );
+
+        args.add(options.getLimit());
+        args.add(options.getSkip());
+
+        SQLiteStorageEngine reader = acquireReadConnection();
+        Cursor cursor = null;
+        try {
+            cursor = reader.rawQuery(sql.toString(), args.toArray(new Object[args.size()]));
+            return new AllDocsEnumerator(this, options, reader, cursor);
+        } catch (SQLException e) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            releaseReadConnection(reader);
+            Log.e(Database.TAG, "Error getting all docs", e);
+            throw new CouchbaseLiteException("Error getting all docs", e, new Status(Status.INTERNAL_SERVER_ERROR));
+        }
+    }
 
     /**
      * Returns the rev ID of the 'winning' revision of this document, and whether it's deleted.
@@ -2808,7 +3778,7 @@ public final class Database {
                 " WHERE doc_id=? and current=1" +
                 " ORDER BY deleted asc, revid desc LIMIT 2";
 
-        String[] args = { Long.toString(docNumericId) };
+        Object[] args = { docNumericId };
         String revId = null;
 
         try {
@@ -2893,24 +3863,45 @@ public final class Database {
 
     private void insertAttachmentForSequenceWithNameAndType(long sequence, String name, String contentType, int revpos, BlobKey key, long length, AttachmentInternal.AttachmentEncoding encoding, long encodedLength) throws CouchbaseLiteException {
         try {
-            ContentValues args = new ContentValues();
-            args.put("sequence", sequence);
-            args.put("filename", name);
-            args.put("type", contentType);
-            args.put("revpos", revpos);
-            if (key != null) {
-                args.put("key", key.getBytes());
-            }
-            if (length >= 0) {
-                args.put("length", length);
-            }
-            if(encoding == AttachmentInternal.AttachmentEncoding.AttachmentEncodingGZIP) {
-                args.put("encoding", encoding.ordinal());
-                if (encodedLength >= 0) {
-                    args.put("encoded_length", encodedLength);
+            SQLiteStatement statement = getCompiledStatement(
+                    "INSERT INTO attachments (sequence, filename, key, type, length, revpos, encoding, encoded_length) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+            long result;
+            try {
+                statement.bindLong(1, sequence);
+                statement.bindString(2, name);
+                // NULL key or length violates NOT NULL, which fails the insert as before
+                if (key != null) {
+                    statement.bindBlob(3, key.getBytes());
+                } else {
+                    statement.bindNull(3);
+                }
+                if (contentType != null) {
+                    statement.bindString(4, contentType);
+                } else {
+                    statement.bindNull(4);
+                }
+                if (length >= 0) {
+                    statement.bindLong(5, length);
+                } else {
+                    statement.bindNull(5);
+                }
+                statement.bindLong(6, revpos);
+                if (encoding == AttachmentInternal.AttachmentEncoding.AttachmentEncodingGZIP) {
+                    statement.bindLong(7, encoding.ordinal());
+                    if (encodedLength >= 0) {
+                        statement.bindLong(8, encodedLength);
+                    } else {
+                        statement.bindNull(8);
+                    }
+                } else {
+                    statement.bindLong(7, AttachmentInternal.AttachmentEncoding.AttachmentEncodingNone.ordinal());
+                    statement.bindNull(8);
                 }
+                result = statement.executeInsert();
+            } finally {
+                releaseStatement(statement);
             }
-            long result = database.insert("attachments", null, args);
             if (result == -1) {
                 String msg = "Insert attachment failed (returned -1)";
                 Log.e(Database.TAG, msg);
@@ -2971,16 +3962,21 @@ public final class Database {
             throw new CouchbaseLiteException(Status.NOT_FOUND);
         }
 
-        Cursor cursor = null;
-
-        String[] args = { Long.toString(toSeq), name, Long.toString(fromSeq), name };
         try {
-            database.execSQL("INSERT INTO attachments (sequence, filename, key, type, length, revpos) " +
+            SQLiteStatement statement = getCompiledStatement(
+                    "INSERT INTO attachments (sequence, filename, key, type, length, revpos) " +
                     "SELECT ?, ?, key, type, length, revpos FROM attachments " +
-                    "WHERE sequence=? AND filename=?", args);
-            cursor = database.rawQuery("SELECT changes()", null);
-            cursor.moveToNext();
-            int rowsUpdated = cursor.getInt(0);
+                    "WHERE sequence=? AND filename=?");
+            int rowsUpdated;
+            try {
+                statement.bindLong(1, toSeq);
+                statement.bindString(2, name);
+                statement.bindLong(3, fromSeq);
+                statement.bindString(4, name);
+                rowsUpdated = statement.executeUpdateDelete();
+            } finally {
+                releaseStatement(statement);
+            }
             if(rowsUpdated == 0) {
                 // Oops. This means a glitch in our attachment-management or pull code,
                 // or else a bug in the upstream server.
@@ -2993,10 +3989,6 @@ public final class Database {
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error copying attachment", e);
             throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
         }
     }
 
@@ -3011,7 +4003,7 @@ public final class Database {
 
         Cursor cursor = null;
 
-        String[] args = { Long.toString(sequence), filename };
+        Object[] args = { sequence, filename };
         try {
             cursor = database.rawQuery("SELECT key, type FROM attachments WHERE sequence=? AND filename=?", args);
 
@@ -3055,7 +4047,7 @@ public final class Database {
         Cursor cursor = null;
         String filePath = null;
 
-        String args[] = { Long.toString(sequence), filename };
+        Object[] args = { sequence, filename };
         try {
             cursor = database.rawQuery("SELECT key, type, encoding FROM attachments WHERE sequence=? AND filename=?", args);
 
@@ -3079,25 +4071,17 @@ public final class Database {
 
 
     public boolean sequenceHasAttachments(long sequence) {
-
-        Cursor cursor = null;
-
-        String args[] = { Long.toString(sequence) };
         try {
-            cursor = database.rawQuery("SELECT 1 FROM attachments WHERE sequence=? LIMIT 1", args);
-
-            if(cursor.moveToNext()) {
-                return true;
-            } else {
-                return false;
+            SQLiteStatement statement = getCompiledStatement("SELECT 1 FROM attachments WHERE sequence=? LIMIT 1");
+            try {
+                statement.bindLong(1, sequence);
+                return statement.simpleQueryForLong() > 0;
+            } finally {
+                releaseStatement(statement);
             }
         } catch (SQLException e) {
             Log.e(Database.TAG, "Error getting attachments for sequence", e);
             return false;
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
         }
     }
 
@@ -3112,7 +4096,7 @@ public final class Database {
 
         Cursor cursor = null;
 
-        String args[] = { Long.toString(sequence) };
+        Object[] args = { sequence };
         try {
             cursor = database.rawQuery("SELECT filename, key, type, encoding, length, encoded_length, revpos FROM attachments WHERE sequence=?", args);
 
@@ -3545,7 +4529,14 @@ public final class Database {
             Log.e(Database.TAG, "Error deleting attachments", e);
         }
 
-        // Now collect all remaining attachment IDs and tell the store to delete all but these:
+        return deleteUnreferencedBlobs();
+    }
+
+    /**
+     * Deletes the files in the blob store that no attachment row refers to.
+     */
+    /* package */ Status deleteUnreferencedBlobs() {
+        // Collect all remaining attachment IDs and tell the store to delete all but these:
         Cursor cursor = null;
         try {
             cursor = database.rawQuery("SELECT DISTINCT key FROM attachments", null);
@@ -3558,10 +4549,11 @@ public final class Database {
                 cursor.moveToNext();
             }
 
-            int numDeleted = attachments.deleteBlobsExceptWithKeys(allKeys);
+            int numDeleted = attachments.deleteBlobsExceptWithKeys(new HashSet<BlobKey>(allKeys));
             if(numDeleted < 0) {
                 return new Status(Status.INTERNAL_SERVER_ERROR);
             }
+            database.execSQL("DELETE FROM blob_garbage");  // all taken care of
 
             Log.v(Database.TAG, "Deleted %d attachments", numDeleted);
 
@@ -3576,6 +4568,118 @@ public final class Database {
         }
     }
 
+    /**
+     * Takes up to maxBlobs keys off the blob_garbage list, i.e. keys of attachment files whose
+     * last attachment row has been deleted, for deleteGarbageBlobs() to delete once the
+     * transaction this is called in has committed. (If it rolls back, the keys are listed again
+     * and the files must still be there.)
+     *
+     * Unlike deleteUnreferencedBlobs() this doesn't look at the whole blob store, so it won't
+     * find files that were never referenced at all (e.g. left by a failed save).
+     *
+     * @return The keys, or null if there were none.
+     */
+    /* package */ List<BlobKey> takeGarbageBlobKeys(int maxBlobs) throws SQLException {
+        List<BlobKey> keys = new ArrayList<BlobKey>();
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT key FROM blob_garbage LIMIT ?", new Object[]{maxBlobs});
+            while (cursor.moveToNext()) {
+                keys.add(new BlobKey(cursor.getBlob(0)));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (keys.isEmpty()) {
+            return null;
+        }
+        SQLiteStatement statement = getCompiledStatement("DELETE FROM blob_garbage WHERE key=?");
+        try {
+            for (BlobKey key : keys) {
+                statement.bindBlob(1, key.getBytes());
+                statement.executeUpdateDelete();
+            }
+        } finally {
+            releaseStatement(statement);
+        }
+        return keys;
+    }
+
+    /**
+     * Deletes the attachment files of keys from takeGarbageBlobKeys(), outside any transaction.
+     * A key that's been referenced again since, or whose file was just stored again for a save
+     * that hasn't inserted its attachment row yet (see BlobStore.deleteBlobIfIdle()), is kept;
+     * if it ends up unreferenced after all, the next compact() deletes it.
+     *
+     * @return The number of files deleted.
+     */
+    /* package */ int deleteGarbageBlobs(List<BlobKey> keys) {
+        int numDeleted = 0;
+        for (BlobKey key : keys) {
+            if (!isOpen()) {
+                break;
+            }
+            try {
+                if (isBlobReferenced(key)) {
+                    continue;
+                }
+            } catch (SQLException e) {
+                Log.e(Database.TAG, "Error checking attachment references", e);
+                continue;
+            }
+            if (attachments.deleteBlobIfIdle(key)) {
+                numDeleted++;
+            }
+        }
+        Log.v(Database.TAG, "Deleted %d of %d unreferenced attachments", numDeleted, keys.size());
+        return numDeleted;
+    }
+
+    private boolean isBlobReferenced(BlobKey key) throws SQLException {
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT 1 FROM attachments WHERE key=? LIMIT 1",
+                    new Object[]{key.getBytes()});
+            return cursor.moveToNext();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Takes the keys off blob_garbage a chunk per transaction, deleting each chunk's files after
+     * its transaction commits, until there are none left.
+     */
+    private void deleteAllGarbageBlobs() {
+        final int CHUNK_SIZE = 100;
+        final List<List<BlobKey>> taken = new ArrayList<List<BlobKey>>(1);
+        do {
+            taken.clear();
+            boolean ok = runInTransaction(new TransactionalTask() {
+                @Override
+                public boolean run() {
+                    List<BlobKey> keys = takeGarbageBlobKeys(CHUNK_SIZE);
+                    if (keys != null) {
+                        taken.add(keys);
+                    }
+                    return true;
+                }
+            });
+            if (!ok) {
+                Log.w(Database.TAG, "%s: error deleting unreferenced attachments", this);
+                return;
+            }
+            if (taken.isEmpty()) {
+                return;
+            }
+            deleteGarbageBlobs(taken.get(0));
+        } while (taken.get(0).size() == CHUNK_SIZE && isOpen());
+    }
+
     /*************************************************************************************************/
     /*** Database+Insertion                                                                      ***/
     /*************************************************************************************************/
@@ -3689,9 +4793,16 @@ public final class Database {
     public long insertDocumentID(String docId) {
         long rowId = -1;
         try {
-            ContentValues args = new ContentValues();
-            args.put("docid", docId);
-            rowId = database.insert("docs", null, args);
+            SQLiteStatement statement = getCompiledStatement("INSERT INTO docs (docid) VALUES (?)");
+            try {
+                statement.bindString(1, docId);
+                rowId = statement.executeInsert();
+            } finally {
+                releaseStatement(statement);
+            }
+            if (rowId > 0) {
+                cacheDocNumericID(docId, rowId);
+            }
         } catch (Exception e) {
             Log.e(Database.TAG, "Error inserting document id", e);
         }
@@ -3867,16 +4978,20 @@ public final class Database {
      * in CBLDatabase+Internal.m
      * - (void) storageExitedTransaction: (BOOL)committed
      */
-    private void storageExitedTransaction(boolean committed) {
+    private void storageExitedTransaction(boolean committed, int changeMark) {
         if (!committed) {
-            // I already told cached CBLDocuments about these new revisions. Back that out:
-            for (DocumentChange change : changesToNotify) {
+            // I already told cached CBLDocuments about these new revisions. Back that out.
+            // Only the changes made since the transaction began; an enclosing transaction's
+            // earlier changes are still pending.
+            List<DocumentChange> rolledBack = changesToNotify.subList(
+                    Math.min(changeMark, changesToNotify.size()), changesToNotify.size());
+            for (DocumentChange change : rolledBack) {
                 Document doc = cachedDocumentWithID(change.getDocumentId());
                 if (doc != null) {
                     doc.forgetCurrentRevision();
                 }
             }
-            changesToNotify.clear();
+            rolledBack.clear();
         }
         postChangeNotifications();
     }
@@ -3888,17 +5003,29 @@ public final class Database {
     public long insertRevision(RevisionInternal rev, long docNumericID, long parentSequence, boolean current, boolean hasAttachments, byte[] data) {
         long rowId = 0;
         try {
-            ContentValues args = new ContentValues();
-            args.put("doc_id", docNumericID);
-            args.put("revid", rev.getRevId());
-            if(parentSequence != 0) {
-                args.put("parent", parentSequence);
-            }
-            args.put("current", current);
-            args.put("deleted", rev.isDeleted());
-            args.put("no_attachments",!hasAttachments);
-            args.put("json", data);
-            rowId = database.insert("revs", null, args);
+            SQLiteStatement statement = getCompiledStatement(
+                    "INSERT INTO revs (doc_id, revid, parent, current, deleted, no_attachments, json) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?)");
+            try {
+                statement.bindLong(1, docNumericID);
+                statement.bindString(2, rev.getRevId());
+                if (parentSequence != 0) {
+                    statement.bindLong(3, parentSequence);
+                } else {
+                    statement.bindNull(3);
+                }
+                statement.bindLong(4, current ? 1 : 0);
+                statement.bindLong(5, rev.isDeleted() ? 1 : 0);
+                statement.bindLong(6, hasAttachments ? 0 : 1);
+                if (data != null) {
+                    statement.bindBlob(7, encodeStoredJSON(data));
+                } else {
+                    statement.bindNull(7);
+                }
+                rowId = statement.executeInsert();
+            } finally {
+                releaseStatement(statement);
+            }
             rev.setSequence(rowId);
         } catch (Exception e) {
             Log.e(Database.TAG, "Error inserting revision", e);
@@ -3936,9 +5063,333 @@ public final class Database {
      * @return A new RevisionInternal with the docID, revID and sequence filled in (but no body).
      * @exclude
      */
-    @SuppressWarnings("unchecked")
     @InterfaceAudience.Private
     public RevisionInternal putRevision(RevisionInternal oldRev, String prevRevId, boolean allowConflict, Status resultStatus) throws CouchbaseLiteException {
+        return putRevision(oldRev, prevRevId, allowConflict, resultStatus, null);
+    }
+
+    /**
+     * Stores several new (or initial) revisions in a single transaction, so they are committed
+     * together and their changes are posted in one ChangeEvent. The doc IDs and current revisions
+     * of all the documents are looked up up front with a few set-based queries instead of
+     * per document.
+     *
+     * Each revision succeeds or fails on its own, as with putRevision(); a failed one leaves the
+     * others alone.
+     *
+     * @param revs The revisions to add; see putRevision().
+     * @param prevRevIds The ID of the revision each one replaces, or null for a new document.
+     * @param allowConflict See putRevision().
+     * @param outStatuses If not null, filled in with the status of each revision, in order.
+     * @return The new revisions, in order, with null in place of any that failed.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public List<RevisionInternal> putRevisions(List<RevisionInternal> revs, List<String> prevRevIds, boolean allowConflict, List<Status> outStatuses) throws CouchbaseLiteException {
+        List<RevisionInternal> result = new ArrayList<RevisionInternal>(revs.size());
+        if (outStatuses != null) {
+            outStatuses.clear();
+        }
+
+        boolean success = false;
+        beginTransaction();
+        try {
+            Set<String> docIds = new HashSet<String>();
+            for (RevisionInternal rev : revs) {
+                if (rev != null && rev.getDocId() != null) {
+                    docIds.add(rev.getDocId());
+                }
+            }
+            CurrentRevisions current = loadCurrentRevisions(docIds);
+
+            for (int i = 0; i < revs.size(); i++) {
+                RevisionInternal rev = revs.get(i);
+                String prevRevId = (prevRevIds != null) ? prevRevIds.get(i) : null;
+                Status status = new Status();
+                RevisionInternal newRev = null;
+                try {
+                    newRev = putRevision(rev, prevRevId, allowConflict, status, current);
+                } catch (CouchbaseLiteException e) {
+                    Log.w(Database.TAG, "Unable to put revision %s in bulk: %s", rev, e.getCBLStatus());
+                    status = e.getCBLStatus();
+                }
+                if (newRev == null && status.isSuccessful()) {
+                    status.setCode(Status.INTERNAL_SERVER_ERROR);
+                }
+                if (!status.isSuccessful() && rev != null && rev.getDocId() != null) {
+                    // Its nested transaction was rolled back; don't trust what we know about the doc.
+                    current.forget(rev.getDocId());
+                }
+                result.add(newRev);
+                if (outStatuses != null) {
+                    outStatuses.add(status);
+                }
+            }
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+        return result;
+    }
+
+    /**
+     * Saves several documents in a single transaction, posting one ChangeEvent for all of them.
+     * Each properties map is saved like Document.putProperties(): include "_id" to choose the
+     * document ID (otherwise one is generated), the current "_rev" to update an existing document,
+     * and "_deleted": true to delete it.
+     *
+     * @param documents The properties of each document to save.
+     * @return The saved revisions, in the same order, with null in place of any document that
+     * couldn't be saved (e.g. because of a conflict or a validation failure).
+     * @throws CouchbaseLiteException
+     */
+    @InterfaceAudience.Public
+    public List<SavedRevision> putDocuments(List<Map<String, Object>> documents) throws CouchbaseLiteException {
+        return putDocuments(documents, null);
+    }
+
+    /**
+     * A delegate that can be called to signal the completion of an asynchronous write.
+     * If the write failed, result is null and error is the reason, usually a
+     * CouchbaseLiteException.
+     */
+    @InterfaceAudience.Public
+    public static interface WriteCompleteListener<T> {
+        public void completed(T result, Throwable error);
+    }
+
+    /**
+     * Saves a document asynchronously, on the database's writer thread. The properties are as
+     * for putDocuments(); include "_deleted": true (and "_rev") to delete the document.
+     *
+     * Writes submitted this way are committed in batches, so they share transactions with each
+     * other; they're applied in the order submitted. Closing the database waits for the writes
+     * already queued.
+     *
+     * @param listener Called on the writer thread once the write has been committed or has
+     *                 failed; may be null.
+     * @return A Future for the saved revision. Its get() throws an ExecutionException wrapping a
+     * CouchbaseLiteException if the document couldn't be saved.
+     */
+    @InterfaceAudience.Public
+    public Future<SavedRevision> putDocumentAsync(Map<String, Object> properties, WriteCompleteListener<SavedRevision> listener) {
+        return getWriteQueue().putDocument(new HashMap<String, Object>(properties), listener);
+    }
+
+    /**
+     * Deletes the given revision of a document asynchronously; see putDocumentAsync().
+     */
+    @InterfaceAudience.Public
+    public Future<SavedRevision> deleteDocumentAsync(String documentId, String revId, WriteCompleteListener<SavedRevision> listener) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("_id", documentId);
+        properties.put("_rev", revId);
+        properties.put("_deleted", true);
+        return getWriteQueue().putDocument(properties, listener);
+    }
+
+    /**
+     * Sets the contents of a local document asynchronously, like putLocalDocument(); see
+     * putDocumentAsync(). If properties is null the document is deleted.
+     */
+    @InterfaceAudience.Public
+    public Future<Boolean> putLocalDocumentAsync(String id, Map<String, Object> properties, WriteCompleteListener<Boolean> listener) {
+        Map<String, Object> copy = (properties != null) ? new HashMap<String, Object>(properties) : null;
+        return getWriteQueue().putLocalDocument(id, copy, listener);
+    }
+
+    /**
+     * Deletes a local document asynchronously, like deleteLocalDocument(); see putDocumentAsync().
+     */
+    @InterfaceAudience.Public
+    public Future<Boolean> deleteLocalDocumentAsync(String id, WriteCompleteListener<Boolean> listener) {
+        return getWriteQueue().putLocalDocument(id, null, listener);
+    }
+
+    private synchronized WriteQueue getWriteQueue() {
+        if (!open) {
+            WriteQueue closedQueue = new WriteQueue(this);
+            closedQueue.close();  // fails whatever is submitted
+            return closedQueue;
+        }
+        if (writeQueue == null) {
+            writeQueue = new WriteQueue(this);
+        }
+        return writeQueue;
+    }
+
+    /**
+     * putDocuments(), also filling in outStatuses (if not null) with the status of each document.
+     *
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    List<SavedRevision> putDocuments(List<Map<String, Object>> documents, List<Status> outStatuses) throws CouchbaseLiteException {
+        List<RevisionInternal> revs = new ArrayList<RevisionInternal>(documents.size());
+        List<String> prevRevIds = new ArrayList<String>(documents.size());
+        for (Map<String, Object> properties : documents) {
+            Map<String, Object> attachments = (Map<String, Object>) properties.get("_attachments");
+            if (attachments != null && attachments.size() > 0) {
+                Map<String, Object> updatedAttachments = Attachment.installAttachmentBodies(attachments, this);
+                properties.put("_attachments", updatedAttachments);
+            }
+            boolean deleted = Boolean.TRUE.equals(properties.get("_deleted"));
+            RevisionInternal rev = new RevisionInternal((String) properties.get("_id"), null, deleted);
+            rev.setProperties(properties);
+            revs.add(rev);
+            prevRevIds.add((String) properties.get("_rev"));
+        }
+
+        List<Status> statuses = (outStatuses != null) ? outStatuses : new ArrayList<Status>(documents.size());
+        List<RevisionInternal> newRevs = putRevisions(revs, prevRevIds, false, statuses);
+
+        List<SavedRevision> result = new ArrayList<SavedRevision>(newRevs.size());
+        for (int i = 0; i < newRevs.size(); i++) {
+            RevisionInternal newRev = newRevs.get(i);
+            if (newRev == null) {
+                Log.w(Database.TAG, "Unable to save document %s: %s", revs.get(i).getDocId(), statuses.get(i));
+                result.add(null);
+            } else {
+                Document doc = getDocument(newRev.getDocId());
+                result.add(doc.getRevisionFromRev(newRev));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The doc IDs and current (leaf) revisions of a set of documents, loaded up front by
+     * putRevisions() and kept up to date as it inserts. Documents it doesn't know about (not
+     * loaded, or forgotten after a failure) are looked up in the database as usual.
+     */
+    private static class CurrentRevisions {
+        private final Map<String, Long> docNumericIDs = new HashMap<String, Long>();
+        private final Map<Long, List<RevisionInternal>> leaves = new HashMap<Long, List<RevisionInternal>>();
+
+        boolean knows(String docId) {
+            return docId != null && docNumericIDs.containsKey(docId);
+        }
+
+        long getDocNumericID(String docId) {
+            Long docNumericID = docNumericIDs.get(docId);
+            return docNumericID != null ? docNumericID : 0;
+        }
+
+        void addDocument(String docId, long docNumericID) {
+            docNumericIDs.put(docId, docNumericID);
+            if (docNumericID > 0 && !leaves.containsKey(docNumericID)) {
+                leaves.put(docNumericID, new ArrayList<RevisionInternal>());
+            }
+        }
+
+        void addLeaf(long docNumericID, RevisionInternal rev) {
+            leaves.get(docNumericID).add(rev);
+        }
+
+        void forget(String docId) {
+            Long docNumericID = docNumericIDs.remove(docId);
+            if (docNumericID != null) {
+                leaves.remove(docNumericID);
+            }
+        }
+
+        /**
+         * Same result as Database.winningRevIDOfDoc(): the highest live leaf, else the highest
+         * deleted one.
+         */
+        String winningRevID(long docNumericID, AtomicBoolean outIsDeleted, AtomicBoolean outIsConflict) {
+            RevisionInternal winner = null;
+            int liveLeaves = 0;
+            for (RevisionInternal leaf : leaves.get(docNumericID)) {
+                if (!leaf.isDeleted()) {
+                    liveLeaves++;
+                }
+                if (winner == null
+                        || (winner.isDeleted() && !leaf.isDeleted())
+                        || (winner.isDeleted() == leaf.isDeleted()
+                            && RevisionInternal.CBLCompareRevIDs(leaf.getRevId(), winner.getRevId()) > 0)) {
+                    winner = leaf;
+                }
+            }
+            outIsDeleted.set(winner != null && winner.isDeleted());
+            outIsConflict.set(liveLeaves > 1);
+            return winner != null ? winner.getRevId() : null;
+        }
+
+        /**
+         * Returns the sequence of the given current revision, or 0 if it isn't a leaf.
+         */
+        long currentSequence(long docNumericID, String revId) {
+            for (RevisionInternal leaf : leaves.get(docNumericID)) {
+                if (leaf.getRevId().equals(revId)) {
+                    return leaf.getSequence();
+                }
+            }
+            return 0;
+        }
+
+        void revisionInserted(long docNumericID, RevisionInternal newRev, long parentSequence) {
+            List<RevisionInternal> docLeaves = leaves.get(docNumericID);
+            for (Iterator<RevisionInternal> it = docLeaves.iterator(); it.hasNext(); ) {
+                if (it.next().getSequence() == parentSequence) {
+                    it.remove();
+                }
+            }
+            RevisionInternal leaf = new RevisionInternal(newRev.getDocId(), newRev.getRevId(), newRev.isDeleted());
+            leaf.setSequence(newRev.getSequence());
+            docLeaves.add(leaf);
+        }
+    }
+
+    /**
+     * Loads the doc numeric IDs and current revisions of the given documents, a chunk of doc IDs
+     * per query. Documents that don't exist are recorded as such (numeric ID 0).
+     */
+    private CurrentRevisions loadCurrentRevisions(Collection<String> docIds) throws CouchbaseLiteException {
+        final int CHUNK_SIZE = 500;  // stay under SQLite's default limit of 999 bound variables
+        CurrentRevisions current = new CurrentRevisions();
+        List<String> allIds = new ArrayList<String>(docIds);
+        for (int start = 0; start < allIds.size(); start += CHUNK_SIZE) {
+            List<String> chunk = allIds.subList(start, Math.min(start + CHUNK_SIZE, allIds.size()));
+            StringBuilder sql = new StringBuilder(
+                    "SELECT docs.docid, docs.doc_id, revid, sequence, deleted FROM docs " +
+                    "LEFT JOIN revs ON revs.doc_id=docs.doc_id AND current=1 WHERE docs.docid IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(")");
+
+            for (String docId : chunk) {
+                current.addDocument(docId, 0);
+            }
+            Cursor cursor = null;
+            try {
+                cursor = database.rawQuery(sql.toString(), chunk.toArray(new String[chunk.size()]));
+                while (cursor.moveToNext()) {
+                    String docId = cursor.getString(0);
+                    long docNumericID = cursor.getLong(1);
+                    current.addDocument(docId, docNumericID);
+                    cacheDocNumericID(docId, docNumericID);
+                    if (!cursor.isNull(2)) {
+                        RevisionInternal leaf = new RevisionInternal(docId, cursor.getString(2), cursor.getInt(4) > 0);
+                        leaf.setSequence(cursor.getLong(3));
+                        current.addLeaf(docNumericID, leaf);
+                    }
+                }
+            } catch (SQLException e) {
+                Log.e(Database.TAG, "Error loading current revisions", e);
+                throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        return current;
+    }
+
+    @SuppressWarnings("unchecked")
+    private RevisionInternal putRevision(RevisionInternal oldRev, String prevRevId, boolean allowConflict, Status resultStatus, CurrentRevisions current) throws CouchbaseLiteException {
         // prevRevId is the rev ID being replaced, or nil if an insert
         String docId = oldRev.getDocId();
         boolean deleted = oldRev.isDeleted();
@@ -3955,7 +5406,10 @@ public final class Database {
 
         //// PART I: In which are performed lookups and validations prior to the insert...
 
-        long docNumericID = (docId != null) ? getDocNumericID(docId) : 0;
+        // Use what putRevisions() already loaded about this doc, if anything:
+        boolean known = (current != null && current.knows(docId));
+
+        long docNumericID = (docId != null) ? (known ? current.getDocNumericID(docId) : getDocNumericID(docId)) : 0;
         long parentSequence = 0;
         AtomicBoolean oldWinnerWasDeletion = new AtomicBoolean(false);
         AtomicBoolean wasConflicted = new AtomicBoolean(false);
@@ -3964,8 +5418,11 @@ public final class Database {
         try {
             if (docNumericID > 0) {
                 try {
-                    oldWinningRevID = winningRevIDOfDoc(docNumericID, oldWinnerWasDeletion, wasConflicted);
-
+                    if (known) {
+                        oldWinningRevID = current.winningRevID(docNumericID, oldWinnerWasDeletion, wasConflicted);
+                    } else {
+                        oldWinningRevID = winningRevIDOfDoc(docNumericID, oldWinnerWasDeletion, wasConflicted);
+                    }
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -3979,7 +5436,12 @@ public final class Database {
                     throw new CouchbaseLiteException(msg ,Status.NOT_FOUND);
                 }
 
-                parentSequence = getSequenceOfDocument(docNumericID, prevRevId, !allowConflict);
+                if (known) {
+                    parentSequence = current.currentSequence(docNumericID, prevRevId);
+                }
+                if (parentSequence == 0 && !(known && !allowConflict)) {
+                    parentSequence = getSequenceOfDocument(docNumericID, prevRevId, !allowConflict);
+                }
 
                 if(parentSequence == 0) {
                     // Not found: either a 404 or a 409, depending on whether there is any current revision
@@ -4024,12 +5486,17 @@ public final class Database {
                         if(docNumericID <= 0) {
                             return null;
                         }
+                        if (known) {
+                            current.addDocument(docId, docNumericID);
+                        }
                     } else {
 
                         // Doc ID exists; check whether current winning revision is deleted:
                         if (oldWinnerWasDeletion.get() == true) {
                             prevRevId = oldWinningRevID;
-                            parentSequence = getSequenceOfDocument(docNumericID, prevRevId, false);
+                            parentSequence = known ?
+                                    current.currentSequence(docNumericID, prevRevId) :
+                                    getSequenceOfDocument(docNumericID, prevRevId, false);
 
                         } else if (oldWinningRevID != null) {
                             String msg = "The current winning revision is not deleted, so this is a conflict";
@@ -4108,9 +5575,13 @@ public final class Database {
 
             // Make replaced rev non-current:
             try {
-                ContentValues args = new ContentValues();
-                args.put("current", 0);
-                database.update("revs", args, "sequence=?", new String[] {String.valueOf(parentSequence)});
+                SQLiteStatement statement = getCompiledStatement("UPDATE revs SET current=0 WHERE sequence=?");
+                try {
+                    statement.bindLong(1, parentSequence);
+                    statement.executeUpdateDelete();
+                } finally {
+                    releaseStatement(statement);
+                }
             } catch (SQLException e) {
                 Log.e(Database.TAG, "Error setting parent rev non-current", e);
                 throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
@@ -4118,16 +5589,32 @@ public final class Database {
 
             if(newSequence <= 0) {
                 // duplicate rev; see above
+                if (known) {
+                    current.forget(docId);
+                }
+                revisionTrees.remove(docNumericID);
                 resultStatus.setCode(Status.OK);
                 databaseStorageChanged(new DocumentChange(newRev, winningRev, inConflict, null));
                 return newRev;
             }
 
+            if (known) {
+                current.revisionInserted(docNumericID, newRev, parentSequence);
+            }
+            RevisionTree tree = revisionTrees.get(docNumericID);
+            if (tree != null) {
+                tree.add(newRev.getRevId(), newSequence, parentSequence, true, newRev.isDeleted());
+                if (parentSequence > 0) {
+                    tree.markNotCurrent(parentSequence);
+                }
+            }
+
             // Store any attachments:
             if(attachments != null) {
                 processAttachmentsForRevision(attachments, newRev, parentSequence);
             }
 
+            pruneRevisionsOnInsert(docNumericID, newRev.getGeneration());
 
             // Figure out what the new winning rev ID is:
             winningRev = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion.get(), newRev);
@@ -4209,25 +5696,20 @@ public final class Database {
     private long getSequenceOfDocument(long docNumericId, String revId, boolean onlyCurrent) {
 
         long result = -1;
-        Cursor cursor = null;
         try {
-            String extraSql = (onlyCurrent ? "AND current=1" : "");
-            String sql = String.format("SELECT sequence FROM revs WHERE doc_id=? AND revid=? %s LIMIT 1", extraSql);
-            String[] args = { ""+docNumericId, revId };
-            cursor = database.rawQuery(sql, args);
-
-            if(cursor.moveToNext()) {
-                result = cursor.getLong(0);
-            }
-            else {
-                result = 0;
+            String sql = onlyCurrent ?
+                    "SELECT sequence FROM revs WHERE doc_id=? AND revid=? AND current=1 LIMIT 1" :
+                    "SELECT sequence FROM revs WHERE doc_id=? AND revid=? LIMIT 1";
+            SQLiteStatement statement = getCompiledStatement(sql);
+            try {
+                statement.bindLong(1, docNumericId);
+                statement.bindString(2, revId);
+                result = statement.simpleQueryForLong();  // 0 if not found
+            } finally {
+                releaseStatement(statement);
             }
         } catch (Exception e) {
             Log.e(Database.TAG, "Error getting getSequenceOfDocument", e);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
         }
         return result;
     }
@@ -4345,6 +5827,89 @@ public final class Database {
 
     }
 
+    /**
+     * Returns the lowest generation of a document's history to keep once a revision of the given
+     * generation is added, per maxRevTreeDepth; 0 if there is no limit.
+     */
+    private int minGenerationToKeep(int generation) {
+        int maxDepth = maxRevTreeDepth;
+        if (maxDepth <= 0 || maxDepth == Integer.MAX_VALUE || generation <= maxDepth) {
+            return 0;
+        }
+        return generation - maxDepth + 1;
+    }
+
+    /**
+     * Deletes the non-current revisions of a document more than maxRevTreeDepth generations older
+     * than a revision of the given generation that was just added. Done with every insert, this
+     * keeps each history within the limit at a cost of about one row per insert: the delete is a
+     * range scan of the revs_by_docid_revid index, whose revid column sorts by generation.
+     * Leaves of other branches are current, so they are never removed.
+     */
+    private int pruneRevisionsOnInsert(long docNumericID, int generation) throws CouchbaseLiteException {
+        int minGeneration = minGenerationToKeep(generation);
+        if (minGeneration <= 1) {
+            return 0;
+        }
+        int rowsDeleted;
+        try {
+            SQLiteStatement statement = getCompiledStatement(
+                    "DELETE FROM revs WHERE doc_id=? AND revid < ? AND current=0");
+            try {
+                statement.bindLong(1, docNumericID);
+                statement.bindString(2, String.format("%d-", minGeneration));
+                rowsDeleted = statement.executeUpdateDelete();
+            } finally {
+                releaseStatement(statement);
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error pruning revisions", e);
+            throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
+        }
+        if (rowsDeleted > 0) {
+            revisionTrees.remove(docNumericID);
+            Log.v(Database.TAG, "Pruned %d old revisions of doc %d", rowsDeleted, docNumericID);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Drops the cached revision tree of a document whose revisions were removed.
+     */
+    /* package */ void forgetRevisionTree(long docNumericID) {
+        revisionTrees.remove(docNumericID);
+    }
+
+    /**
+     * Returns the cached revision tree of a document, loading it from the revs table if needed.
+     */
+    private RevisionTree getRevisionTree(String docId, long docNumericID) throws CouchbaseLiteException {
+        RevisionTree tree = revisionTrees.get(docNumericID);
+        if (tree != null) {
+            return tree;
+        }
+        tree = new RevisionTree(docId, docNumericID);
+        Cursor cursor = null;
+        try {
+            Object[] args = { docNumericID };
+            cursor = database.rawQuery("SELECT sequence, revid, parent, current, deleted FROM revs " +
+                    "WHERE doc_id=? ORDER BY sequence", args);
+            while (cursor.moveToNext()) {
+                tree.add(cursor.getString(1), cursor.getLong(0), cursor.isNull(2) ? 0 : cursor.getLong(2),
+                        cursor.getInt(3) > 0, cursor.getInt(4) > 0);
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error loading revision tree", e);
+            throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        revisionTrees.put(docNumericID, tree);
+        return tree;
+    }
+
     /**
      * Inserts an already-existing revision replicated from a remote sqliteDb.
      *
@@ -4387,27 +5952,20 @@ public final class Database {
         beginTransaction();
         try {
             // First look up the document's row-id and all locally-known revisions of it:
-            Map<String, RevisionInternal> localRevs = null;
             boolean isNewDoc = (historyCount == 1);
             long docNumericID = getOrInsertDocNumericID(docId);
 
-            if (!isNewDoc) {
-                RevisionList localRevsList = getAllRevisionsOfDocumentID(docId, docNumericID, false);
-                if (localRevsList == null) {
-                    throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
-                }
-                localRevs = new HashMap<String, RevisionInternal>();
-                for (RevisionInternal r : localRevsList) {
-                    localRevs.put(r.getRevId(), r);
-                }
-            }
+            // A new doc's tree is only cached if we already have it; otherwise it's loaded once
+            // and then kept up to date for the following revisions of the same doc.
+            RevisionTree localRevs = isNewDoc ? revisionTrees.get(docNumericID) : getRevisionTree(docId, docNumericID);
 
             // Validate against the latest common ancestor:
             if (validations != null && validations.size() > 0) {
                 RevisionInternal oldRev = null;
                 for (int i = 1; i < historyCount; i++) {
-                    oldRev = (localRevs != null) ? localRevs.get(revHistory.get(i)) : null;
-                    if (oldRev != null) {
+                    int pos = (localRevs != null) ? localRevs.indexOf(revHistory.get(i)) : -1;
+                    if (pos >= 0) {
+                        oldRev = localRevs.getRevision(pos);
                         break;
                     }
                 }
@@ -4415,15 +5973,20 @@ public final class Database {
                 validateRevision(rev, oldRev, parentRevId);
             }
 
-            AtomicBoolean outIsDeleted = new AtomicBoolean(false);
-            AtomicBoolean outIsConflict = new AtomicBoolean(false);
             boolean oldWinnerWasDeletion = false;
-            String oldWinningRevID = winningRevIDOfDoc(docNumericID, outIsDeleted, outIsConflict);
-            if (outIsDeleted.get()) {
-                oldWinnerWasDeletion = true;
-            }
-            if (outIsConflict.get()) {
-                inConflict = true;
+            String oldWinningRevID;
+            if (localRevs != null) {
+                boolean[] outIsDeleted = new boolean[1];
+                boolean[] outIsConflict = new boolean[1];
+                oldWinningRevID = localRevs.winningRevId(outIsDeleted, outIsConflict);
+                oldWinnerWasDeletion = outIsDeleted[0];
+                inConflict = outIsConflict[0];
+            } else {
+                AtomicBoolean outIsDeleted = new AtomicBoolean(false);
+                AtomicBoolean outIsConflict = new AtomicBoolean(false);
+                oldWinningRevID = winningRevIDOfDoc(docNumericID, outIsDeleted, outIsConflict);
+                oldWinnerWasDeletion = outIsDeleted.get();
+                inConflict = outIsConflict.get();
             }
 
             // Walk through the remote history in chronological order, matching each revision ID to
@@ -4431,13 +5994,19 @@ public final class Database {
             // in the local history:
             long sequence = 0;
             long localParentSequence = 0;
+            int minGenerationToInsert = minGenerationToKeep(rev.getGeneration());
             for (int i = revHistory.size() - 1; i >= 0; --i) {
                 revId = revHistory.get(i);
-                RevisionInternal localRev = (localRevs != null) ? localRevs.get(revId) : null;
-                if (localRev != null) {
+                long localSequence = (localRevs != null) ? localRevs.getSequence(revId) : 0;
+                if (localSequence == 0 && i > 1
+                        && RevisionInternal.generationFromRevID(revId) < minGenerationToInsert) {
+                    // Too old to keep; it would be pruned right away, so don't insert a stub.
+                    // (The parent is always inserted, as attachments may be copied from it.)
+                    continue;
+                }
+                if (localSequence > 0) {
                     // This revision is known locally. Remember its sequence as the parent of the next one:
-                    sequence = localRev.getSequence();
-                    assert (sequence > 0);
+                    sequence = localSequence;
                     localParentSequence = sequence;
                 } else {
                     // This revision isn't known, so add it:
@@ -4461,11 +6030,15 @@ public final class Database {
                     }
 
                     // Insert it:
-                    sequence = insertRevision(newRev, docNumericID, sequence, current, (newRev.getAttachments() != null && newRev.getAttachments().size() > 0), data);
+                    long parentSequence = sequence;
+                    sequence = insertRevision(newRev, docNumericID, parentSequence, current, (newRev.getAttachments() != null && newRev.getAttachments().size() > 0), data);
 
                     if (sequence <= 0) {
                         throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
                     }
+                    if (localRevs != null) {
+                        localRevs.add(revId, sequence, parentSequence, current, newRev.isDeleted());
+                    }
 
                     if (i == 0) {
                         // Write any changed attachments for the new revision. As the parent sequence use
@@ -4483,20 +6056,28 @@ public final class Database {
 
             // Mark the latest local rev as no longer current:
             if (localParentSequence > 0 && localParentSequence != sequence) {
-                ContentValues args = new ContentValues();
-                args.put("current", 0);
-                String[] whereArgs = {Long.toString(localParentSequence)};
                 int numRowsChanged = 0;
                 try {
-                    numRowsChanged = database.update("revs", args, "sequence=? AND current!=0", whereArgs);
+                    SQLiteStatement statement = getCompiledStatement("UPDATE revs SET current=0 WHERE sequence=? AND current!=0");
+                    try {
+                        statement.bindLong(1, localParentSequence);
+                        numRowsChanged = statement.executeUpdateDelete();
+                    } finally {
+                        releaseStatement(statement);
+                    }
                     if (numRowsChanged == 0) {
                         inConflict = true;  // local parent wasn't a leaf, ergo we just created a branch
                     }
+                    if (localRevs != null) {
+                        localRevs.markNotCurrent(localParentSequence);
+                    }
                 } catch (SQLException e) {
                     throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
                 }
             }
 
+            pruneRevisionsOnInsert(docNumericID, rev.getGeneration());
+
             winningRev = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion, rev);
 
             success = true;
@@ -4852,14 +6433,26 @@ public final class Database {
         // First get the parent's sequence:
         long seq = rev.getSequence();
         if (seq > 0) {
-            seq = longForQuery("SELECT parent FROM revs WHERE sequence=?", new String[] { Long.toString(seq) });
+            SQLiteStatement statement = getCompiledStatement("SELECT parent FROM revs WHERE sequence=?");
+            try {
+                statement.bindLong(1, seq);
+                seq = statement.simpleQueryForLong();
+            } finally {
+                releaseStatement(statement);
+            }
         } else {
             long docNumericID = getDocNumericID(rev.getDocId());
             if (docNumericID <= 0) {
                 return null;
             }
-            String[] args = new String[] { Long.toString(docNumericID), rev.getRevId() } ;
-            seq = longForQuery("SELECT parent FROM revs WHERE doc_id=? and revid=?", args);
+            SQLiteStatement statement = getCompiledStatement("SELECT parent FROM revs WHERE doc_id=? and revid=?");
+            try {
+                statement.bindLong(1, docNumericID);
+                statement.bindString(2, rev.getRevId());
+                seq = statement.simpleQueryForLong();
+            } finally {
+                releaseStatement(statement);
+            }
         }
 
         if (seq == 0) {
@@ -4869,7 +6462,7 @@ public final class Database {
         // Now get its revID and deletion status:
         RevisionInternal result = null;
 
-        String[] args = { Long.toString(seq) };
+        Object[] args = { seq };
         String queryString = "SELECT revid, deleted FROM revs WHERE sequence=?";
         Cursor cursor = null;
 
@@ -4910,6 +6503,10 @@ public final class Database {
     /**
      * Purges specific revisions, which deletes them completely from the local database _without_ adding a "tombstone" revision. It's as though they were never there.
      * This operation is described here: http://wiki.apache.org/couchdb/Purge_Documents
+     *
+     * The work is done with set-based statements over temp tables (purge_docs and purge_seqs)
+     * rather than per document, so purging many documents at once costs a few queries in all.
+     *
      * @param docsToRevs  A dictionary mapping document IDs to arrays of revision IDs.
      * @resultOn success will point to an NSDictionary with the same form as docsToRev, containing the doc/revision IDs that were actually removed.
      * @exclude
@@ -4921,104 +6518,168 @@ public final class Database {
         runInTransaction(new TransactionalTask() {
             @Override
             public boolean run() {
-                for (String docID : docsToRevs.keySet()) {
-                    long docNumericID = getDocNumericID(docID);
-                    if (docNumericID == -1) {
-                        continue; // no such document, skip it
-                    }
-                    List<String> revsPurged = new ArrayList<String>();
-                    List<String> revIDs = (List<String>) docsToRevs.get(docID);
-                    if (revIDs == null) {
-                        return false;
-                    } else if (revIDs.size() == 0) {
-                        revsPurged = new ArrayList<String>();
-                    } else if (revIDs.contains("*")) {
-                        // Delete all revisions if magic "*" revision ID is given:
-                        try {
-                            String[] args = {Long.toString(docNumericID)};
-                            database.execSQL("DELETE FROM revs WHERE doc_id=?", args);
-                        } catch (SQLException e) {
-                            Log.e(Database.TAG, "Error deleting revisions", e);
-                            return false;
-                        }
-                        revsPurged = new ArrayList<String>();
-                        revsPurged.add("*");
-                    } else {
-                        // Iterate over all the revisions of the doc, in reverse sequence order.
-                        // Keep track of all the sequences to delete, i.e. the given revs and ancestors,
-                        // but not any non-given leaf revs or their ancestors.
-                        Cursor cursor = null;
-
-                        try {
-                            String[] args = {Long.toString(docNumericID)};
-                            String queryString = "SELECT revid, sequence, parent FROM revs WHERE doc_id=? ORDER BY sequence DESC";
-                            cursor = database.rawQuery(queryString, args);
-                            if (!cursor.moveToNext()) {
-                                Log.w(Database.TAG, "No results for query: %s", queryString);
-                                return false;
-                            }
+                try {
+                    return purgeRevisionsInTransaction(docsToRevs, result);
+                } catch (SQLException e) {
+                    Log.e(Database.TAG, "Error purging revisions", e);
+                    return false;
+                } finally {
+                    clearPurgeTables();
+                }
+            }
+        });
 
-                            Set<Long> seqsToPurge = new HashSet<Long>();
-                            Set<Long> seqsToKeep = new HashSet<Long>();
-                            Set<String> revsToPurge = new HashSet<String>();
-                            while (!cursor.isAfterLast()) {
-
-                                String revID = cursor.getString(0);
-                                long sequence = cursor.getLong(1);
-                                long parent = cursor.getLong(2);
-                                if (seqsToPurge.contains(sequence) || revIDs.contains(revID) && !seqsToKeep.contains(sequence)) {
-                                    // Purge it and maybe its parent:
-                                    seqsToPurge.add(sequence);
-                                    revsToPurge.add(revID);
-                                    if (parent > 0) {
-                                        seqsToPurge.add(parent);
-                                    }
-                                } else {
-                                    // Keep it and its parent:
-                                    seqsToPurge.remove(sequence);
-                                    revsToPurge.remove(revID);
-                                    seqsToKeep.add(parent);
-                                }
+        return result;
 
-                                cursor.moveToNext();
-                            }
+    }
 
-                            seqsToPurge.removeAll(seqsToKeep);
-                            Log.i(Database.TAG, "Purging doc '%s' revs (%s); asked for (%s)", docID, revsToPurge, revIDs);
-                            if (seqsToPurge.size() > 0) {
-                                // Now delete the sequences to be purged.
-                                String seqsToPurgeList = TextUtils.join(",", seqsToPurge);
-                                String sql = String.format("DELETE FROM revs WHERE sequence in (%s)", seqsToPurgeList);
-                                try {
-                                    database.execSQL(sql);
-                                } catch (SQLException e) {
-                                    Log.e(Database.TAG, "Error deleting revisions via: " + sql, e);
-                                    return false;
-                                }
-                            }
-                            revsPurged.addAll(revsToPurge);
-
-                        } catch (SQLException e) {
-                            Log.e(Database.TAG, "Error getting revisions", e);
-                            return false;
-                        } finally {
-                            if (cursor != null) {
-                                cursor.close();
-                            }
-                        }
+    // Values of purge_docs.mode:
+    private static final int PURGE_NOTHING = 0;
+    private static final int PURGE_ALL_REVS = 1;
+    private static final int PURGE_SOME_REVS = 2;
 
-                    }
+    private boolean purgeRevisionsInTransaction(Map<String, List<String>> docsToRevs, Map<String, Object> result) {
+        database.execSQL("CREATE TEMP TABLE IF NOT EXISTS purge_docs (docid TEXT PRIMARY KEY, mode INTEGER)");
+        database.execSQL("CREATE TEMP TABLE IF NOT EXISTS purge_seqs (sequence INTEGER PRIMARY KEY)");
+        clearPurgeTables();
 
-                    result.put(docID, revsPurged);
+        // Load the targeted doc IDs:
+        SQLiteStatement insertDoc = getCompiledStatement("INSERT OR REPLACE INTO temp.purge_docs (docid, mode) VALUES (?, ?)");
+        try {
+            for (Map.Entry<String, List<String>> entry : docsToRevs.entrySet()) {
+                List<String> revIDs = entry.getValue();
+                if (revIDs == null) {
+                    return false;
+                }
+                int mode = revIDs.isEmpty() ? PURGE_NOTHING : (revIDs.contains("*") ? PURGE_ALL_REVS : PURGE_SOME_REVS);
+                insertDoc.bindString(1, entry.getKey());
+                insertDoc.bindLong(2, mode);
+                insertDoc.executeInsert();
+            }
+        } finally {
+            releaseStatement(insertDoc);
+        }
 
+        // Resolve them to numeric IDs in one query; docs that don't exist are skipped.
+        Map<Long, String> someRevsDocs = new HashMap<Long, String>();
+        int allRevsDocs = 0;
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT p.docid, d.doc_id, p.mode FROM temp.purge_docs p, docs d " +
+                    "WHERE d.docid = p.docid", (String[]) null);
+            while (cursor.moveToNext()) {
+                String docID = cursor.getString(0);
+                long docNumericID = cursor.getLong(1);
+                switch (cursor.getInt(2)) {
+                    case PURGE_ALL_REVS:
+                        forgetDocNumericID(docID);
+                        revisionTrees.remove(docNumericID);
+                        result.put(docID, new ArrayList<String>(Arrays.asList("*")));
+                        allRevsDocs++;
+                        break;
+                    case PURGE_SOME_REVS:
+                        someRevsDocs.put(docNumericID, docID);
+                        break;
+                    default:
+                        result.put(docID, new ArrayList<String>());
+                        break;
                 }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
 
-                return true;
+        // Every revision of the "*" docs:
+        if (allRevsDocs > 0) {
+            String allRevsDocIDs = "SELECT d.doc_id FROM docs d, temp.purge_docs p " +
+                    "WHERE d.docid = p.docid AND p.mode = " + PURGE_ALL_REVS;
+            database.execSQL("INSERT OR IGNORE INTO temp.purge_seqs " +
+                    "SELECT sequence FROM revs WHERE doc_id IN (" + allRevsDocIDs + ")");
+            database.execSQL("DELETE FROM expiry WHERE doc_id IN (" + allRevsDocIDs + ")");
+        }
+
+        // The given revisions and their ancestors, but not any non-given leaf revs or their
+        // ancestors. The revision trees of all these docs are read in one pass, each doc's
+        // revisions in reverse sequence order.
+        if (!someRevsDocs.isEmpty()) {
+            SQLiteStatement insertSeq = getCompiledStatement("INSERT OR IGNORE INTO temp.purge_seqs (sequence) VALUES (?)");
+            cursor = null;
+            try {
+                cursor = database.rawQuery("SELECT revs.doc_id, revid, sequence, parent FROM revs " +
+                        "WHERE doc_id IN (SELECT d.doc_id FROM docs d, temp.purge_docs p " +
+                        "WHERE d.docid = p.docid AND p.mode = " + PURGE_SOME_REVS + ") " +
+                        "ORDER BY revs.doc_id, sequence DESC", (String[]) null);
+                boolean onRow = cursor.moveToNext();
+                while (onRow) {
+                    long docNumericID = cursor.getLong(0);
+                    String docID = someRevsDocs.get(docNumericID);
+                    List<String> revIDs = docsToRevs.get(docID);
+                    Set<Long> seqsToPurge = new HashSet<Long>();
+                    Set<Long> seqsToKeep = new HashSet<Long>();
+                    Set<String> revsToPurge = new HashSet<String>();
+                    do {
+                        String revID = cursor.getString(1);
+                        long sequence = cursor.getLong(2);
+                        long parent = cursor.getLong(3);
+                        if (seqsToPurge.contains(sequence) || revIDs.contains(revID) && !seqsToKeep.contains(sequence)) {
+                            // Purge it and maybe its parent:
+                            seqsToPurge.add(sequence);
+                            revsToPurge.add(revID);
+                            if (parent > 0) {
+                                seqsToPurge.add(parent);
+                            }
+                        } else {
+                            // Keep it and its parent:
+                            seqsToPurge.remove(sequence);
+                            revsToPurge.remove(revID);
+                            seqsToKeep.add(parent);
+                        }
+                    } while ((onRow = cursor.moveToNext()) && cursor.getLong(0) == docNumericID);
+
+                    seqsToPurge.removeAll(seqsToKeep);
+                    Log.v(Database.TAG, "Purging doc '%s' revs (%s); asked for (%s)", docID, revsToPurge, revIDs);
+                    if (seqsToPurge.size() > 0) {
+                        revisionTrees.remove(docNumericID);
+                        for (Long sequence : seqsToPurge) {
+                            insertSeq.bindLong(1, sequence);
+                            insertSeq.executeInsert();
+                        }
+                    }
+                    result.put(docID, new ArrayList<String>(revsToPurge));
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                releaseStatement(insertSeq);
             }
-        });
+            // Docs with no revisions left at all have nothing to purge:
+            for (String docID : someRevsDocs.values()) {
+                if (!result.containsKey(docID)) {
+                    result.put(docID, new ArrayList<String>());
+                }
+            }
+        }
 
-        return result;
+        // Now delete the sequences to be purged. Their map and attachment rows would go by
+        // cascade anyway, but deleting them as sets first saves a lookup per revision.
+        String seqs = "SELECT sequence FROM temp.purge_seqs";
+        database.execSQL("DELETE FROM maps WHERE sequence IN (" + seqs + ")");
+        database.execSQL("DELETE FROM attachments WHERE sequence IN (" + seqs + ")");
+        database.execSQL("DELETE FROM revs WHERE sequence IN (" + seqs + ")");
+        Log.i(Database.TAG, "Purged %d documents entirely and revisions of %d others", allRevsDocs, someRevsDocs.size());
+        return true;
+    }
 
+    private void clearPurgeTables() {
+        try {
+            database.execSQL("DELETE FROM temp.purge_docs");
+            database.execSQL("DELETE FROM temp.purge_seqs");
+        } catch (SQLException e) {
+            // the tables weren't created yet
+        }
     }
 
     /**
@@ -5177,7 +6838,7 @@ public final class Database {
                 minGen = Revision.generationFromRevID(minGenRevId);
                 maxGen = Revision.generationFromRevID(maxGenRevId);
                 if ((maxGen - minGen + 1) > maxDepth) {
-                    toPrune.put(docNumericID, (maxGen - minGen));
+                    toPrune.put(docNumericID, (maxGen - maxDepth));
                 }
 
             }
@@ -5190,10 +6851,11 @@ public final class Database {
 
             for (Long docNumericIDLong : toPrune.keySet()) {
                 String minIDToKeep = String.format("%d-", toPrune.get(docNumericIDLong).intValue() + 1);
-                String[] deleteArgs = { Long.toString(docNumericID), minIDToKeep};
+                String[] deleteArgs = { Long.toString(docNumericIDLong), minIDToKeep};
                 int rowsDeleted = database.delete("revs", "doc_id=? AND revid < ? AND current=0", deleteArgs);
                 outPruned += rowsDeleted;
             }
+            revisionTrees.evictAll();
 
             shouldCommit = true;
 
@@ -5248,15 +6910,18 @@ public final class Database {
             @Override
             public void changed(Replication.ChangeEvent event) {
                 if (event.getTransition() != null && event.getTransition().getDestination() == ReplicationState.STOPPED) {
-                    if (activeReplicators != null) {
-                        activeReplicators.remove(event.getSource());
+                    Set<Replication> replicators = activeReplicators;
+                    if (replicators != null && replicators.remove(event.getSource())) {
+                        manager.releaseDatabase(Database.this);
                     }
                 }
             }
         });
 
-        if (activeReplicators != null) {
-            activeReplicators.add(replication);
+        // An active replication holds a lease on the database until it stops
+        Set<Replication> replicators = activeReplicators;
+        if (replicators != null && replicators.add(replication)) {
+            manager.retainDatabase(this);
         }
 
 
@@ -5365,4 +7030,382 @@ public final class Database {
         }
         return 0;
     }
+
+    /** BODY COMPRESSION: **/
+
+    /**
+     * Returns the body as it should be stored in revs.json: in the database's body format, and
+     * compressed if body compression is on.
+     */
+    private byte[] encodeStoredJSON(byte[] json) {
+        if (bodyFormat == BodyFormat.SMILE && json.length > 2) {
+            try {
+                json = BodyEncoding.jsonToSmile(json);
+            } catch (Exception e) {
+                Log.w(Database.TAG, "Unable to encode revision body as Smile, storing JSON", e);
+            }
+        }
+        BodyCompressor compressor = bodyCompressor;
+        if (!bodyCompressionEnabled || compressor == null) {
+            return json;
+        }
+        return compressor.compress(json);
+    }
+
+    /**
+     * Undoes the compression done by encodeStoredJSON(): returns the body read from revs.json as
+     * JSON or Smile (see BodyEncoding.mapperFor()). Returns null if the body is compressed and
+     * can't be decompressed.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    protected byte[] decodeDocumentJSON(byte[] json) {
+        if (!BodyCompressor.isCompressed(json)) {
+            return json;
+        }
+        BodyCompressor compressor = bodyCompressor;
+        if (compressor == null) {
+            compressor = new BodyCompressor(null);
+        }
+        try {
+            return compressor.decompress(json);
+        } catch (IllegalStateException e) {
+            Log.e(Database.TAG, "Unable to decompress revision body", e);
+            return null;
+        }
+    }
+
+    private void loadBodyCompressionSettings() {
+        bodyCompressionEnabled = "1".equals(infoForKey(INFO_BODY_COMPRESSION));
+        byte[] dictionary = null;
+        String encoded = infoForKey(INFO_BODY_COMPRESSION_DICTIONARY);
+        if (encoded != null) {
+            try {
+                dictionary = Base64.decode(encoded);
+            } catch (IOException e) {
+                Log.e(Database.TAG, "Invalid body compression dictionary", e);
+            }
+        }
+        if (dictionary != null || bodyCompressionEnabled) {
+            bodyCompressor = new BodyCompressor(dictionary);
+        }
+        if (bodyCompressionEnabled && dictionary == null) {
+            // Compression was turned on while the database was (nearly) empty. Bodies compressed
+            // without a dictionary can be read with any, so it's safe to add one now.
+            dictionary = trainBodyDictionary();
+            if (dictionary != null
+                    && setInfo(INFO_BODY_COMPRESSION_DICTIONARY, Base64.encodeBytes(dictionary)) > 0) {
+                bodyCompressor = new BodyCompressor(dictionary);
+            }
+        }
+    }
+
+    private void loadBodyFormatSetting() {
+        bodyFormat = BodyFormat.JSON;
+        String format = infoForKey(INFO_BODY_FORMAT);
+        if (BodyFormat.SMILE.name().equals(format)) {
+            if (BodyEncoding.isSmileAvailable()) {
+                bodyFormat = BodyFormat.SMILE;
+            } else {
+                Log.w(Database.TAG, "%s: database uses the Smile body format, but jackson-dataformat-smile " +
+                        "is not available; storing new revisions as JSON", this);
+            }
+        }
+    }
+
+    /**
+     * Builds a compression dictionary from a sample of the current revision bodies.
+     * Returns null if there aren't enough bodies to learn from.
+     */
+    private byte[] trainBodyDictionary() {
+        List<byte[]> samples = new ArrayList<byte[]>();
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(
+                    "SELECT json FROM revs WHERE current=1 AND json IS NOT NULL ORDER BY sequence DESC LIMIT ?",
+                    new Object[]{BODY_DICTIONARY_SAMPLE_SIZE});
+            while (cursor.moveToNext()) {
+                byte[] json = decodeDocumentJSON(cursor.getBlob(0));
+                if (json != null && !BodyEncoding.isSmile(json)) {
+                    samples.add(json);
+                }
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error sampling revision bodies", e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (samples.size() < 2) {
+            return null;
+        }
+        return BodyCompressor.trainDictionary(samples, BodyCompressor.MAX_DICTIONARY_SIZE);
+    }
+
+    /**
+     * Compresses the existing revision bodies on the Manager's background thread, a batch per
+     * transaction, recording progress in the info table so an interrupted pass resumes where it
+     * stopped the next time the database is opened. Stops early if compression is turned off.
+     * Each batch is a separate task, queued when the previous one is done, so other background
+     * work isn't held up until the whole migration finishes.
+     */
+    private void startBodyCompressionMigration() {
+        if (!bodyCompressionMigrating.compareAndSet(false, true)) {
+            return;
+        }
+        Runnable batch = new Runnable() {
+            @Override
+            public void run() {
+                boolean more = false;
+                try {
+                    more = isOpen() && bodyCompressionEnabled && compressBodyBatch();
+                } catch (Exception e) {
+                    Log.e(Database.TAG, "Error compressing revision bodies", e);
+                }
+                if (!more || manager.runAsync(this) == null) {
+                    bodyCompressionMigrating.set(false);
+                }
+            }
+        };
+        if (manager.runAsync(batch) == null) {
+            bodyCompressionMigrating.set(false);
+        }
+    }
+
+    /**
+     * Compresses the next batch of uncompressed bodies. Returns false when there are no more.
+     */
+    private boolean compressBodyBatch() {
+        final boolean[] more = {false};
+        boolean committed = runInTransaction(new TransactionalTask() {
+            @Override
+            public boolean run() {
+                BodyCompressor compressor = bodyCompressor;
+                if (!bodyCompressionEnabled || compressor == null) {
+                    return false;
+                }
+                String migrated = infoForKey(INFO_BODY_COMPRESSION_MIGRATED);
+                long lastSequence = (migrated != null) ? Long.parseLong(migrated) : 0;
+                int count = 0;
+                int compressed = 0;
+                Cursor cursor = null;
+                SQLiteStatement update = null;
+                try {
+                    cursor = database.rawQuery(
+                            "SELECT sequence, json FROM revs WHERE sequence>? AND json IS NOT NULL " +
+                            "ORDER BY sequence LIMIT ?",
+                            new Object[]{lastSequence, BODY_COMPRESSION_BATCH_SIZE});
+                    update = getCompiledStatement("UPDATE revs SET json=? WHERE sequence=?");
+                    while (cursor.moveToNext()) {
+                        count++;
+                        lastSequence = cursor.getLong(0);
+                        byte[] json = cursor.getBlob(1);
+                        if (BodyCompressor.isCompressed(json)) {
+                            continue;
+                        }
+                        byte[] stored = compressor.compress(json);
+                        if (stored == json) {
+                            continue;
+                        }
+                        update.bindBlob(1, stored);
+                        update.bindLong(2, lastSequence);
+                        update.executeUpdateDelete();
+                        compressed++;
+                    }
+                } catch (SQLException e) {
+                    Log.e(Database.TAG, "Error compressing revision bodies", e);
+                    return false;
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    if (update != null) {
+                        releaseStatement(update);
+                    }
+                }
+                if (count > 0 && setInfo(INFO_BODY_COMPRESSION_MIGRATED, Long.toString(lastSequence)) <= 0) {
+                    return false;
+                }
+                Log.v(Log.TAG_DATABASE, "%s: compressed %d of %d revision bodies, up to sequence %d",
+                        Database.this, compressed, count, lastSequence);
+                more[0] = (count == BODY_COMPRESSION_BATCH_SIZE);
+                return true;
+            }
+        });
+        return committed && more[0];
+    }
+
+    /** EXPIRATION: **/
+
+    /**
+     * Sets the time at which a document will be purged from the database, or clears it if the
+     * date is null. Expired documents are purged in the background, as by Document.purge(); the
+     * purge is not replicated.
+     */
+    @InterfaceAudience.Public
+    public void setExpirationDate(String docID, Date date) throws CouchbaseLiteException {
+        long docNumericID = getDocNumericID(docID);
+        if (docNumericID <= 0) {
+            throw new CouchbaseLiteException(Status.NOT_FOUND);
+        }
+        try {
+            if (date == null) {
+                database.execSQL("DELETE FROM expiry WHERE doc_id=?", new Object[]{docNumericID});
+            } else {
+                database.execSQL("INSERT OR REPLACE INTO expiry (doc_id, expiration) VALUES (?, ?)",
+                        new Object[]{docNumericID, date.getTime()});
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error setting expiration of " + docID, e);
+            throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
+        }
+        if (date != null) {
+            scheduleExpirySweep(date.getTime());
+        }
+    }
+
+    /**
+     * Returns the time at which a document will be purged, or null if it has none.
+     */
+    @InterfaceAudience.Public
+    public Date getExpirationDate(String docID) {
+        long docNumericID = getDocNumericID(docID);
+        if (docNumericID <= 0) {
+            return null;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT expiration FROM expiry WHERE doc_id=?", new Object[]{docNumericID});
+            if (cursor.moveToNext()) {
+                return new Date(cursor.getLong(0));
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error getting expiration of " + docID, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The earliest document expiration time, or 0 if no document has one.
+     */
+    private long getNextExpiration() {
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT MIN(expiration) FROM expiry", (String[]) null);
+            if (cursor.moveToNext()) {
+                return cursor.getLong(0);  // NULL (empty table) reads as 0
+            }
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error getting next expiration", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Makes sure a sweep is scheduled no later than the given time (0 means none is needed).
+     */
+    private synchronized void scheduleExpirySweep(long time) {
+        if (time <= 0 || !open) {
+            return;
+        }
+        if (expirySweep != null && !expirySweep.isDone() && expirySweepTime <= time) {
+            return;  // an earlier sweep will take care of it
+        }
+        if (expirySweep != null) {
+            expirySweep.cancel(false);
+        }
+        long delay = Math.max(0, time - System.currentTimeMillis());
+        try {
+            expirySweep = manager.getWorkExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sweepExpiredDocuments();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            expirySweepTime = time;
+        } catch (RejectedExecutionException e) {
+            Log.w(Database.TAG, "Unable to schedule expiry sweep; work executor is shut down");
+            expirySweep = null;
+        }
+    }
+
+    private synchronized void cancelExpirySweep() {
+        if (expirySweep != null) {
+            expirySweep.cancel(false);
+            expirySweep = null;
+        }
+    }
+
+    /**
+     * Purges one batch of expired documents, then queues the next batch if there may be more,
+     * or schedules the next sweep for the next expiration time.
+     */
+    private void sweepExpiredDocuments() {
+        synchronized (this) {
+            expirySweep = null;
+        }
+        if (!isOpen()) {
+            return;
+        }
+        final List<String> purged = new ArrayList<String>();
+        boolean committed = runInTransaction(new TransactionalTask() {
+            @Override
+            public boolean run() {
+                List<Long> docNumericIDs = new ArrayList<Long>();
+                Cursor cursor = null;
+                try {
+                    cursor = database.rawQuery(
+                            "SELECT expiry.doc_id, docid FROM expiry, docs " +
+                            "WHERE expiration <= ? AND docs.doc_id = expiry.doc_id " +
+                            "ORDER BY expiration LIMIT ?",
+                            new Object[]{System.currentTimeMillis(), EXPIRY_PURGE_BATCH_SIZE});
+                    while (cursor.moveToNext()) {
+                        docNumericIDs.add(cursor.getLong(0));
+                        purged.add(cursor.getString(1));
+                    }
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+                // Deleting the revs also deletes their map and attachment rows (ON DELETE CASCADE)
+                for (int i = 0; i < docNumericIDs.size(); i++) {
+                    Object[] args = {docNumericIDs.get(i)};
+                    database.execSQL("DELETE FROM revs WHERE doc_id=?", args);
+                    database.execSQL("DELETE FROM expiry WHERE doc_id=?", args);
+                    forgetDocNumericID(purged.get(i));
+                    revisionTrees.remove(docNumericIDs.get(i));
+                }
+                return true;
+            }
+        });
+        if (!committed) {
+            Log.w(Database.TAG, "%s: failed to purge expired documents", this);
+            return;
+        }
+        for (String docID : purged) {
+            docCache.remove(docID);
+        }
+
+        if (purged.size() == EXPIRY_PURGE_BATCH_SIZE) {
+            Log.v(Database.TAG, "%s: purged %d expired documents, continuing", this, purged.size());
+            scheduleExpirySweep(System.currentTimeMillis());
+            return;
+        }
+        if (purged.size() > 0) {
+            Log.i(Database.TAG, "%s: purged %d expired documents", this, purged.size());
+            deleteAllGarbageBlobs();
+        }
+        scheduleExpirySweep(getNextExpiration());
+    }
 }
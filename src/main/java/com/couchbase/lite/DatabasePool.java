@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounds the number of databases a Manager keeps open. Databases are tracked in least-recently
+ * used order; opening one beyond the limit closes the least recently used idle ones. A database
+ * is idle when nothing holds a reference to it and it has no active replications. References
+ * are taken by in-flight work: Manager.leaseDatabase() and runAsync(), the Router for the
+ * length of a request, and active replications. They are returned with
+ * Manager.releaseDatabase(); a database that's still referenced is never closed under its
+ * holder. Manager.getDatabase() opens a database without taking a reference. The Database objects
+ * themselves stay registered with the Manager, and a closed one is reopened the next time it's
+ * asked for.
+ *
+ * If every open database is busy the limit is exceeded rather than failing; the extra ones are
+ * closed as they become idle and something else is opened.
+ *
+ * The pool's lock only guards its bookkeeping: databases are opened and closed outside it, so
+ * one slow open or close doesn't hold up the others. A database picked for closing is marked as
+ * closing first; anyone opening it meanwhile waits for the close to finish and then reopens it.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+class DatabasePool {
+
+    private final int maxOpenDatabases;
+
+    // Open databases, least recently used first
+    private final LinkedHashMap<Database, Boolean> openDatabases = new LinkedHashMap<Database, Boolean>(16, 0.75f, true);
+
+    // References held on databases, open or not
+    private final Map<Database, Integer> references = new HashMap<Database, Integer>();
+
+    // Databases being closed by evictIdleDatabases()
+    private final List<Database> closing = new ArrayList<Database>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    DatabasePool(int maxOpenDatabases) {
+        this.maxOpenDatabases = maxOpenDatabases;
+    }
+
+    /**
+     * Takes a reference on the database, which keeps it from being closed until release()d.
+     * Doesn't open it.
+     */
+    synchronized void retain(Database db) {
+        Integer count = references.get(db);
+        references.put(db, (count == null) ? 1 : count + 1);
+    }
+
+    /**
+     * Returns a reference taken by retain() (or lease()).
+     */
+    void release(Database db) {
+        boolean overLimit;
+        synchronized (this) {
+            Integer count = references.get(db);
+            if (count == null) {
+                return;  // forgotten (e.g. deleted) while referenced
+            }
+            if (count == 1) {
+                references.remove(db);
+            } else {
+                references.put(db, count - 1);
+            }
+            overLimit = (count == 1 && openDatabases.size() > maxOpenDatabases);
+        }
+        if (overLimit) {
+            evictIdleDatabases(null);
+        }
+    }
+
+    /**
+     * Takes a reference on the database and opens it. Returns false (without a reference) if it
+     * couldn't be opened.
+     */
+    boolean lease(Database db) {
+        retain(db);
+        if (!open(db)) {
+            release(db);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Opens the database if it isn't open, and marks it as the most recently used.
+     * Returns false if it couldn't be opened.
+     */
+    boolean open(Database db) {
+        boolean wasOpen;
+        synchronized (this) {
+            waitUntilClosed(db);
+            wasOpen = openDatabases.containsKey(db) && db.isOpen();  // also marks it most recently used
+            if (wasOpen) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+        if (!wasOpen && !db.open()) {
+            synchronized (this) {
+                openDatabases.remove(db);
+            }
+            return false;
+        }
+        boolean overLimit;
+        synchronized (this) {
+            openDatabases.put(db, Boolean.TRUE);
+            overLimit = openDatabases.size() > maxOpenDatabases;
+        }
+        if (overLimit) {
+            evictIdleDatabases(db);
+        }
+        return true;
+    }
+
+    /**
+     * Stops tracking a database that is being closed or deleted by other means.
+     */
+    synchronized void forget(Database db) {
+        openDatabases.remove(db);
+        references.remove(db);
+    }
+
+    synchronized Map<String, Object> getStats() {
+        int referenced = 0;
+        for (Database db : openDatabases.keySet()) {
+            if (references.containsKey(db)) {
+                referenced++;
+            }
+        }
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("max_open", maxOpenDatabases);
+        stats.put("open", openDatabases.size());
+        stats.put("leased", referenced);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        return stats;
+    }
+
+    private void waitUntilClosed(Database db) {
+        boolean interrupted = false;
+        while (closing.contains(db)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes idle databases, least recently used first, until the limit is met. The database
+     * being opened (keep) is never closed.
+     */
+    private void evictIdleDatabases(Database keep) {
+        List<Database> victims = new ArrayList<Database>();
+        synchronized (this) {
+            int open = openDatabases.size();
+            Iterator<Database> it = openDatabases.keySet().iterator();
+            while (open > maxOpenDatabases && it.hasNext()) {
+                Database db = it.next();
+                if (!db.isOpen()) {
+                    it.remove();  // closed by someone else
+                    open--;
+                } else if (db != keep && !references.containsKey(db) && !closing.contains(db)
+                        && db.getActiveReplications().isEmpty()) {
+                    it.remove();
+                    closing.add(db);
+                    victims.add(db);
+                    open--;
+                }
+            }
+            if (open > maxOpenDatabases) {
+                Log.v(Database.TAG, "%s: %d databases open, over the limit of %d; all are in use",
+                        this, open, maxOpenDatabases);
+            }
+        }
+        for (Database db : victims) {
+            Log.v(Database.TAG, "%s: closing idle database %s", this, db.getName());
+            try {
+                db.close();
+            } finally {
+                synchronized (this) {
+                    closing.remove(db);
+                    evictions++;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import com.couchbase.lite.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
@@ -194,6 +195,25 @@ public class Document {
         database.removeDocumentFromCache(this);
     }
 
+    /**
+     * Sets a time at which this document will be purged from the database automatically, or
+     * clears it if the date is null. Like purge(), the expiration is NOT replicated.
+     *
+     * @throws CouchbaseLiteException if the document hasn't been saved yet
+     */
+    @InterfaceAudience.Public
+    public void setExpirationDate(Date date) throws CouchbaseLiteException {
+        database.setExpirationDate(documentId, date);
+    }
+
+    /**
+     * The time at which this document will be purged, or null if it doesn't expire.
+     */
+    @InterfaceAudience.Public
+    public Date getExpirationDate() {
+        return database.getExpirationDate(documentId);
+    }
+
     /**
      * The revision with the specified ID.
      *
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coalesces top-level transactions from concurrent threads into a single SQLite commit.
+ *
+ * The first thread to arrive becomes the leader: it optionally waits up to the window for
+ * other threads to queue their tasks, then runs the whole batch inside one outer transaction,
+ * each task in its own nested transaction (SAVEPOINT) so a task that fails or returns false
+ * is rolled back without affecting the others. Other threads block until their task has been
+ * committed or rolled back. Threads that arrive while a batch is running queue up for the next
+ * one, so under load batches form even with a zero window.
+ *
+ * Tasks run on the leader's thread, not the caller's.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+class GroupCommitter {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    private final Database database;
+    private final int windowMs;
+    private final int maxBatchSize;
+
+    private final Object lock = new Object();
+    private List<Request> pending = new ArrayList<Request>();
+    private boolean leaderActive = false;
+
+    private static class Request {
+        final TransactionalTask task;
+        boolean done = false;
+        boolean committed = false;
+        Exception exception = null;
+
+        Request(TransactionalTask task) {
+            this.task = task;
+        }
+    }
+
+    GroupCommitter(Database database, int windowMs) {
+        this(database, windowMs, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    GroupCommitter(Database database, int windowMs, int maxBatchSize) {
+        this.database = database;
+        this.windowMs = windowMs;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Runs the task as part of a group commit. Returns and throws like
+     * Database.runInTransaction(): true if the task's changes were committed.
+     */
+    boolean run(TransactionalTask task) {
+        Request request = new Request(task);
+        List<Request> batch;
+        boolean interrupted = false;
+        synchronized (lock) {
+            pending.add(request);
+            if (pending.size() >= maxBatchSize) {
+                lock.notifyAll();  // wake a leader that's waiting out its window
+            }
+            while (!request.done && leaderActive) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (!request.done) {
+                // Nobody is committing, so this thread leads the next batch.
+                leaderActive = true;
+                long deadline = System.currentTimeMillis() + windowMs;
+                while (pending.size() < maxBatchSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        lock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        break;
+                    }
+                }
+                if (pending.size() <= maxBatchSize) {
+                    batch = pending;
+                    pending = new ArrayList<Request>();
+                } else {
+                    batch = new ArrayList<Request>(pending.subList(0, maxBatchSize));
+                    pending = new ArrayList<Request>(pending.subList(maxBatchSize, pending.size()));
+                    if (!batch.contains(request)) {
+                        // Always include our own request so the leader never waits on itself.
+                        batch.add(request);
+                        pending.remove(request);
+                    }
+                }
+            } else {
+                batch = null;
+            }
+        }
+
+        if (batch != null) {
+            try {
+                commitBatch(batch);
+            } finally {
+                synchronized (lock) {
+                    for (Request r : batch) {
+                        r.done = true;
+                    }
+                    leaderActive = false;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (request.exception != null) {
+            throw new RuntimeException(request.exception);
+        }
+        return request.committed;
+    }
+
+    private void commitBatch(List<Request> batch) {
+        Log.v(Log.TAG_DATABASE, "%s: group commit of %d transactions", this, batch.size());
+        if (!database.beginTransaction()) {
+            Exception e = new CouchbaseLiteException("Unable to begin group transaction",
+                    new Status(Status.DB_ERROR));
+            for (Request r : batch) {
+                r.exception = e;
+            }
+            return;
+        }
+        for (Request r : batch) {
+            if (!database.beginTransaction()) {
+                r.exception = new CouchbaseLiteException("Unable to begin transaction",
+                        new Status(Status.DB_ERROR));
+                continue;
+            }
+            boolean shouldCommit = false;
+            try {
+                shouldCommit = r.task.run();
+            } catch (Exception e) {
+                Log.e(Database.TAG, e.toString(), e);
+                r.exception = e;
+            } finally {
+                r.committed = database.endTransaction(shouldCommit) && shouldCommit;
+            }
+        }
+        try {
+            database.endTransaction(true);
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error committing group of transactions", e);
+            for (Request r : batch) {
+                if (r.committed) {
+                    r.committed = false;
+                    r.exception = e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.SQLiteStorageEngine;
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Does the work of Database.compact() a slice at a time on the Manager's background thread, so
+ * writers are never locked out for more than one slice.
+ *
+ * Each slice is one transaction that stops after a row budget or a time budget, whichever comes
+ * first; the next slice is then queued behind whatever other work is waiting. The passes are:
+ * <ol>
+ *   <li>BODIES: remove the JSON (and attachment rows) of non-current revisions, in sequence order</li>
+ *   <li>PRUNE: delete revisions deeper than maxRevTreeDepth, in doc_id order (skipped if unlimited)</li>
+ *   <li>ATTACHMENTS: delete attachment files no revision refers to any more, as listed in blob_garbage;
+ *       the files are deleted after the slice commits, so a rolled back slice never loses one</li>
+ *   <li>VACUUM: return free pages to the filesystem, if the database is in incremental vacuum mode</li>
+ * </ol>
+ * The current pass and position are saved in the info table with each slice, so a compaction
+ * interrupted by closing the database resumes where it stopped when next started.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+class IncrementalCompactor implements Runnable {
+
+    public static final int DEFAULT_ROWS_PER_SLICE = 1000;
+    public static final int DEFAULT_MILLIS_PER_SLICE = 50;
+
+    private static final int ROWS_PER_STEP = 100;
+    private static final int VACUUM_PAGES_PER_STEP = 100;
+
+    private static final String INFO_PHASE = "incremental_compact_phase";
+    private static final String INFO_POSITION = "incremental_compact_position";
+
+    private enum Phase { BODIES, PRUNE, ATTACHMENTS, VACUUM, DONE }
+
+    private final Database database;
+    private final int rowsPerSlice;
+    private final int millisPerSlice;
+
+    private volatile boolean stopped = false;
+    private Phase phase;
+    private long position;
+    private boolean failed = false;
+
+    // Keys taken off blob_garbage by the slice in progress, whose files are deleted once it commits
+    private final List<BlobKey> garbageBlobKeys = new ArrayList<BlobKey>();
+
+    IncrementalCompactor(Database database, int rowsPerSlice, int millisPerSlice) {
+        this.database = database;
+        this.rowsPerSlice = rowsPerSlice;
+        this.millisPerSlice = millisPerSlice;
+    }
+
+    /**
+     * Queues the first slice.
+     */
+    void start() {
+        if (database.getManager().runAsync(this) == null) {
+            database.incrementalCompactionFinished(this);
+        }
+    }
+
+    /**
+     * Stops after the slice in progress, if any. Progress so far is kept.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    boolean isStopped() {
+        return stopped;
+    }
+
+    @Override
+    public void run() {
+        if (stopped || !database.isOpen()) {
+            database.incrementalCompactionFinished(this);
+            return;
+        }
+        try {
+            boolean committed = database.runInTransaction(new TransactionalTask() {
+                @Override
+                public boolean run() {
+                    return runSlice();
+                }
+            });
+            if (committed && !garbageBlobKeys.isEmpty()) {
+                database.deleteGarbageBlobs(garbageBlobKeys);
+            }
+        } catch (Exception e) {
+            Log.e(Database.TAG, "Error in incremental compaction", e);
+            failed = true;
+        } finally {
+            garbageBlobKeys.clear();
+        }
+        if (phase == Phase.DONE || failed || stopped || database.getManager().runAsync(this) == null) {
+            database.incrementalCompactionFinished(this);
+        }
+    }
+
+    private boolean runSlice() {
+        if (phase == null) {
+            loadProgress();
+        }
+        long deadline = System.currentTimeMillis() + millisPerSlice;
+        int rows = 0;
+        try {
+            while (phase != Phase.DONE && rows < rowsPerSlice && System.currentTimeMillis() < deadline) {
+                int done;
+                switch (phase) {
+                    case BODIES:
+                        done = compactBodies();
+                        break;
+                    case PRUNE:
+                        done = pruneRevisions();
+                        break;
+                    case ATTACHMENTS:
+                        done = deleteUnusedAttachments();
+                        break;
+                    case VACUUM:
+                        done = vacuum();
+                        break;
+                    default:
+                        done = -1;
+                        break;
+                }
+                if (done < 0) {
+                    nextPhase();
+                } else {
+                    rows += Math.max(done, 1);
+                }
+            }
+            saveProgress();
+        } catch (SQLException e) {
+            Log.e(Database.TAG, "Error in incremental compaction", e);
+            failed = true;
+            phase = null;  // reload the last saved progress if started again
+            return false;
+        }
+        Log.v(Database.TAG, "%s: incremental compaction slice did %d rows, now at %s %d", this, rows, phase, position);
+        return true;
+    }
+
+    private void nextPhase() {
+        phase = Phase.values()[phase.ordinal() + 1];
+        position = 0;
+        if (phase == Phase.PRUNE && database.getMaxRevTreeDepth() == Integer.MAX_VALUE) {
+            nextPhase();  // nothing can be deep enough to prune
+        }
+    }
+
+    private void loadProgress() {
+        phase = Phase.BODIES;
+        position = 0;
+        String savedPhase = database.infoForKey(INFO_PHASE);
+        String savedPosition = database.infoForKey(INFO_POSITION);
+        if (savedPhase != null) {
+            try {
+                phase = Phase.valueOf(savedPhase);
+                position = (savedPosition != null) ? Long.parseLong(savedPosition) : 0;
+                Log.i(Database.TAG, "%s: resuming incremental compaction at %s %d", this, phase, position);
+            } catch (IllegalArgumentException e) {
+                Log.w(Database.TAG, "Ignoring invalid incremental compaction checkpoint %s", savedPhase);
+                phase = Phase.BODIES;
+                position = 0;
+            }
+        }
+    }
+
+    private void saveProgress() {
+        if (phase == Phase.DONE) {
+            // The next compaction starts over: revisions become non-current at any sequence.
+            database.getDatabase().execSQL("DELETE FROM info WHERE key IN (?, ?)",
+                    new Object[]{INFO_PHASE, INFO_POSITION});
+        } else {
+            database.setInfo(INFO_PHASE, phase.name());
+            database.setInfo(INFO_POSITION, Long.toString(position));
+        }
+    }
+
+    /**
+     * Removes the bodies of the next ROWS_PER_STEP non-current revisions.
+     * Returns the number of revisions, or -1 if there are none left.
+     */
+    private int compactBodies() {
+        SQLiteStorageEngine storage = database.getDatabase();
+        long last = 0;
+        int count = 0;
+        Cursor cursor = null;
+        try {
+            cursor = storage.rawQuery(
+                    "SELECT sequence FROM revs WHERE sequence > ? AND current=0 AND json IS NOT NULL " +
+                    "ORDER BY sequence LIMIT ?",
+                    new Object[]{position, ROWS_PER_STEP});
+            while (cursor.moveToNext()) {
+                last = cursor.getLong(0);
+                count++;
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (count == 0) {
+            return -1;
+        }
+        Object[] range = {position, last};
+        storage.execSQL("DELETE FROM attachments WHERE sequence IN " +
+                "(SELECT sequence FROM revs WHERE sequence > ? AND sequence <= ? AND current=0)", range);
+        storage.execSQL("UPDATE revs SET json=null WHERE sequence > ? AND sequence <= ? AND current=0", range);
+        position = last;
+        return count;
+    }
+
+    /**
+     * Prunes the revision trees of the next ROWS_PER_STEP documents to maxRevTreeDepth.
+     * Returns the number of documents examined, or -1 if there are none left.
+     */
+    private int pruneRevisions() {
+        SQLiteStorageEngine storage = database.getDatabase();
+        int maxDepth = database.getMaxRevTreeDepth();
+        List<long[]> toPrune = new ArrayList<long[]>();
+        int count = 0;
+        Cursor cursor = null;
+        try {
+            cursor = storage.rawQuery(
+                    "SELECT doc_id, MIN(revid), MAX(revid) FROM revs WHERE doc_id > ? " +
+                    "GROUP BY doc_id ORDER BY doc_id LIMIT ?",
+                    new Object[]{position, ROWS_PER_STEP});
+            while (cursor.moveToNext()) {
+                count++;
+                position = cursor.getLong(0);
+                int minGen = RevisionInternal.generationFromRevID(cursor.getString(1));
+                int maxGen = RevisionInternal.generationFromRevID(cursor.getString(2));
+                if ((maxGen - minGen + 1) > maxDepth) {
+                    toPrune.add(new long[]{position, maxGen - maxDepth + 1});
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (count == 0) {
+            return -1;
+        }
+        for (long[] doc : toPrune) {
+            String minIDToKeep = String.format("%d-", doc[1]);
+            storage.execSQL("DELETE FROM revs WHERE doc_id=? AND revid < ? AND current=0",
+                    new Object[]{doc[0], minIDToKeep});
+            database.forgetRevisionTree(doc[0]);
+        }
+        return count;
+    }
+
+    /**
+     * Takes the next ROWS_PER_STEP unreferenced attachment keys, whose files run() deletes after
+     * the slice commits. Returns the number taken, or -1 if there are none left.
+     */
+    private int deleteUnusedAttachments() {
+        List<BlobKey> keys = database.takeGarbageBlobKeys(ROWS_PER_STEP);
+        if (keys == null) {
+            return -1;
+        }
+        garbageBlobKeys.addAll(keys);
+        return keys.size();
+    }
+
+    /**
+     * Frees up to VACUUM_PAGES_PER_STEP pages. Returns the number freed, or -1 when there are no
+     * free pages left or the database isn't in incremental vacuum mode.
+     */
+    private int vacuum() {
+        if (!database.isIncrementalVacuumEnabled()) {
+            return -1;
+        }
+        SQLiteStorageEngine storage = database.getDatabase();
+        long freePages = longForQuery(storage, "PRAGMA freelist_count");
+        if (freePages <= 0) {
+            return -1;
+        }
+        int pages = (int) Math.min(freePages, VACUUM_PAGES_PER_STEP);
+        Cursor cursor = null;
+        try {
+            // incremental_vacuum returns a row per page it frees; they have to be stepped through
+            cursor = storage.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", (String[]) null);
+            while (cursor.moveToNext()) {
+                // freeing pages
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return pages;
+    }
+
+    private static long longForQuery(SQLiteStorageEngine storage, String sql) {
+        Cursor cursor = null;
+        try {
+            cursor = storage.rawQuery(sql, (String[]) null);
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -29,6 +29,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
@@ -76,6 +77,8 @@ public final class Manager {
     private Map<String, Database> databases;
     private List<Replication> replications;
     private ScheduledExecutorService workExecutor;
+    private DatabasePool databasePool;  // null if the number of open databases isn't limited
+    private ExecutorService mapExecutor;  // created on first use, if options.getMapThreadCount() > 0
     private HttpClientFactory defaultHttpClientFactory;
     private Context context;
 
@@ -128,6 +131,9 @@ public final class Manager {
         this.options = (options != null) ? options : DEFAULT_OPTIONS;
         this.databases = new HashMap<String, Database>();
         this.replications = new ArrayList<Replication>();
+        if (this.options.getMaxOpenDatabases() > 0) {
+            this.databasePool = new DatabasePool(this.options.getMaxOpenDatabases());
+        }
 
         if (!directoryFile.exists()) {
             directoryFile.mkdirs();
@@ -227,6 +233,12 @@ public final class Manager {
         if (workExecutor != null && !workExecutor.isShutdown()) {
             Utils.shutdownAndAwaitTermination(workExecutor);
         }
+        synchronized (this) {
+            if (mapExecutor != null) {
+                Utils.shutdownAndAwaitTermination(mapExecutor);
+                mapExecutor = null;
+            }
+        }
 
         Log.i(Database.TAG, "Closed " + this);
     }
@@ -234,13 +246,17 @@ public final class Manager {
     /**
      * Returns the database with the given name, or creates it if it doesn't exist.
      * Multiple calls with the same name will return the same Database instance.
+     *
+     * If ManagerOptions limits the number of open databases, the returned database may be
+     * closed later to make room for others (it's reopened the next time it's asked for); use
+     * leaseDatabase() to keep it open while work is in flight.
      */
     @InterfaceAudience.Public
     public Database getDatabase(String name) throws CouchbaseLiteException {
         boolean mustExist = false;
         Database db = getDatabaseWithoutOpening(name, mustExist);
         if (db != null) {
-            boolean opened = db.open();
+            boolean opened = openDatabase(db);
             if (!opened) {
                 return null;
             }
@@ -249,19 +265,88 @@ public final class Manager {
     }
 
     /**
-     * Returns the database with the given name, or null if it doesn't exist.
-     * Multiple calls with the same name will return the same Database instance.
+     * Like getDatabase(), but leases the database: it's never closed to make room for others
+     * until it's returned with releaseDatabase(), which must be called once the work using it
+     * is done.
      */
     @InterfaceAudience.Public
-    public Database getExistingDatabase(String name) throws CouchbaseLiteException {
-        boolean mustExist = true;
+    public Database leaseDatabase(String name) throws CouchbaseLiteException {
+        boolean mustExist = false;
         Database db = getDatabaseWithoutOpening(name, mustExist);
         if (db != null) {
-            db.open();
+            boolean opened = leaseOpenDatabase(db);
+            if (!opened) {
+                return null;
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Returns a lease taken by leaseDatabase() or retainDatabase(). Once all of a database's
+     * leases are returned it may be closed to make room for others; it's reopened the next time
+     * it's asked for.
+     */
+    @InterfaceAudience.Public
+    public void releaseDatabase(Database db) {
+        if (databasePool != null) {
+            databasePool.release(db);
+        }
+    }
+
+    /**
+     * Takes a lease on a database without opening it, for callers that got it from
+     * getDatabaseWithoutOpening(). It must be returned with releaseDatabase().
+     *
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public void retainDatabase(Database db) {
+        if (databasePool != null) {
+            databasePool.retain(db);
+        }
+    }
+
+    /**
+     * Statistics of the open database pool (see ManagerOptions.setMaxOpenDatabases()):
+     * max_open, open, leased, hits, misses and evictions. Null if there's no limit.
+     */
+    @InterfaceAudience.Public
+    public Map<String, Object> getDatabasePoolStats() {
+        return (databasePool != null) ? databasePool.getStats() : null;
+    }
+
+    /**
+     * Opens the database, counting it against the open database limit if there is one.
+     *
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public boolean openDatabase(Database db) {
+        return (databasePool != null) ? databasePool.open(db) : db.open();
+    }
+
+    private Database openExistingDatabase(String name) throws CouchbaseLiteException {
+        Database db = getDatabaseWithoutOpening(name, true);
+        if (db != null) {
+            openDatabase(db);
         }
         return db;
     }
 
+    private boolean leaseOpenDatabase(Database db) {
+        return (databasePool != null) ? databasePool.lease(db) : db.open();
+    }
+
+    /**
+     * Returns the database with the given name, or null if it doesn't exist.
+     * Multiple calls with the same name will return the same Database instance.
+     */
+    @InterfaceAudience.Public
+    public Database getExistingDatabase(String name) throws CouchbaseLiteException {
+        return openExistingDatabase(name);
+    }
+
     /**
      * Replaces or installs a database from a file.
      * <p/>
@@ -390,11 +475,17 @@ public final class Manager {
      */
     @InterfaceAudience.Private
     public Future runAsync(String databaseName, final AsyncTask function) throws CouchbaseLiteException {
-        final Database database = getDatabase(databaseName);
+        final Database database = leaseDatabase(databaseName);
         return runAsync(new Runnable() {
             @Override
             public void run() {
-                function.run(database);
+                try {
+                    function.run(database);
+                } finally {
+                    if (database != null) {
+                        releaseDatabase(database);
+                    }
+                }
             }
         });
     }
@@ -517,6 +608,9 @@ public final class Manager {
 
         // remove from cached list of dbs
         databases.remove(db.getName());
+        if (databasePool != null) {
+            databasePool.forget(db);
+        }
 
         // remove from list of replications
         // TODO: should there be something that actually stops the replication(s) first?
@@ -568,8 +662,9 @@ public final class Manager {
         Database db = null;
         String remoteStr = null;
 
+        // Not leased here: a started replication holds a lease on its database until it stops
         if (Manager.isValidDatabaseName(source)) {
-            db = getExistingDatabase(source);
+            db = openExistingDatabase(source);
             remoteStr = target;
             push = true;
             remoteMap = targetMap;
@@ -578,11 +673,11 @@ public final class Manager {
             if (createTarget && !cancel) {
                 boolean mustExist = false;
                 db = getDatabaseWithoutOpening(target, mustExist);
-                if (!db.open()) {
+                if (!openDatabase(db)) {
                     throw new CouchbaseLiteException("cannot open database: " + db, new Status(Status.INTERNAL_SERVER_ERROR));
                 }
             } else {
-                db = getExistingDatabase(target);
+                db = openExistingDatabase(target);
             }
             if (db == null) {
                 throw new CouchbaseLiteException("database is null", new Status(Status.NOT_FOUND));
@@ -697,5 +792,60 @@ public final class Manager {
     public int getExecutorThreadPoolSize() {
         return this.options.getExecutorThreadPoolSize();
     }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    protected int getReadConnectionPoolSize() {
+        return this.options.getReadConnectionPoolSize();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    protected boolean isGroupCommit() {
+        return this.options.isGroupCommit();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    protected int getGroupCommitWindowMs() {
+        return this.options.getGroupCommitWindowMs();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    protected int getMapThreadCount() {
+        return this.options.getMapThreadCount();
+    }
+
+    /**
+     * The thread pool that runs map functions for view indexing (see
+     * ManagerOptions.setMapThreadCount()).
+     *
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    synchronized ExecutorService getMapExecutor() {
+        if (mapExecutor == null) {
+            mapExecutor = Executors.newFixedThreadPool(getMapThreadCount(), new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CBLMapWorker-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mapExecutor;
+    }
 }
 
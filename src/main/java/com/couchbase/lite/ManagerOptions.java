@@ -22,6 +22,41 @@ public class ManagerOptions {
      */
     private int executorThreadPoolSize = 0;
 
+    /**
+     * the number of read-only connections each database keeps alongside its write connection.
+     * When > 0 the database is switched to WAL mode and document/changes/query reads made outside
+     * of a transaction use these connections, so they aren't blocked by a long write transaction.
+     * 0 (the default) uses a single connection for everything.
+     */
+    private int readConnectionPoolSize = 0;
+
+    /**
+     * coalesce top-level Database.runInTransaction() calls made concurrently from different
+     * threads into a single SQLite commit. Each task still commits or rolls back on its own.
+     */
+    private boolean groupCommit = false;
+
+    /**
+     * how long (ms) the first transaction of a group commit waits for others to join it.
+     * 0 only groups the transactions that queued up while the previous commit was running.
+     */
+    private int groupCommitWindowMs = 0;
+
+    /**
+     * the most databases the Manager keeps open at once. Beyond it, the least recently used
+     * databases that aren't leased (by Manager.leaseDatabase() and in-flight work, until returned
+     * with Manager.releaseDatabase()) and have no active replications are closed, and reopened when
+     * next asked for. 0 (the default) means no limit.
+     */
+    private int maxOpenDatabases = 0;
+
+    /**
+     * the number of threads that run map functions while a view index is updated. 0 (the
+     * default) runs them on the indexing thread, one document at a time. When > 0, map functions
+     * are called concurrently for different documents, so they must be thread-safe.
+     */
+    private int mapThreadCount = 0;
+
     public ManagerOptions() {
     }
 
@@ -48,4 +83,44 @@ public class ManagerOptions {
     public void setExecutorThreadPoolSize(int executorThreadPoolSize) {
         this.executorThreadPoolSize = executorThreadPoolSize;
     }
+
+    public int getReadConnectionPoolSize() {
+        return readConnectionPoolSize;
+    }
+
+    public void setReadConnectionPoolSize(int readConnectionPoolSize) {
+        this.readConnectionPoolSize = readConnectionPoolSize;
+    }
+
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    public void setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    public int getGroupCommitWindowMs() {
+        return groupCommitWindowMs;
+    }
+
+    public void setGroupCommitWindowMs(int groupCommitWindowMs) {
+        this.groupCommitWindowMs = groupCommitWindowMs;
+    }
+
+    public int getMaxOpenDatabases() {
+        return maxOpenDatabases;
+    }
+
+    public void setMaxOpenDatabases(int maxOpenDatabases) {
+        this.maxOpenDatabases = maxOpenDatabases;
+    }
+
+    public int getMapThreadCount() {
+        return mapThreadCount;
+    }
+
+    public void setMapThreadCount(int mapThreadCount) {
+        this.mapThreadCount = mapThreadCount;
+    }
 }
\ No newline at end of file
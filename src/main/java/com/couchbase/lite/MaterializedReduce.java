@@ -0,0 +1,295 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.SQLiteStatement;
+import com.couchbase.lite.storage.SQLiteStorageEngine;
+import com.couchbase.lite.support.JsonDocument;
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the reduced values of a view (one with View.setReduceMaterialized()) in the reduces
+ * table, one per distinct key, so that reduced and grouped queries combine those instead of
+ * reducing every map row in range.
+ *
+ * Rows are ordered and matched by collation_key (see CollatableKey), and each keeps the JSON
+ * key of its map rows to return.
+ *
+ * The reduce_views table lists the views whose reduces rows are valid. While a view is listed,
+ * triggers on the maps table record the keys of its changed map rows in reduces_dirty, and
+ * update() reduces just those keys again. Resetting a view's index unlists it, and the next
+ * update() rebuilds its reduces rows from all of its map rows.
+ *
+ * A query reads the rows in its key range; group=true returns them as they are, and anything
+ * coarser combines them by calling the reduce function with rereduce=true.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+class MaterializedReduce {
+
+    private final Database database;
+    private final View view;
+
+    MaterializedReduce(Database database, View view) {
+        this.database = database;
+        this.view = view;
+    }
+
+    /**
+     * Whether the view is kept up to date by update().
+     */
+    static boolean isEnabled(View view) {
+        return view.isReduceMaterialized() && view.getMap() != null && view.getReduce() != null;
+    }
+
+    /**
+     * Whether the view's reduces rows are valid and reflect all of its map rows.
+     */
+    static boolean isUpToDate(SQLiteStorageEngine connection, int viewId) {
+        Cursor cursor = null;
+        try {
+            cursor = connection.rawQuery(
+                    "SELECT EXISTS (SELECT 1 FROM reduce_views WHERE view_id=?), " +
+                    "EXISTS (SELECT 1 FROM reduces_dirty WHERE view_id=?)",
+                    new Object[]{viewId, viewId});
+            return cursor.moveToNext() && cursor.getInt(0) != 0 && cursor.getInt(1) == 0;
+        } catch (SQLException e) {
+            Log.e(Log.TAG_VIEW, "Error checking materialized reduce state", e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Whether query() can answer a reduced query with these options. It can't for the options
+     * that select part of a key's rows (startkey_docid, endkey_docid), or that count map rows
+     * (skip, limit), or without collation keys.
+     */
+    static boolean canAnswer(View view, QueryOptions options) {
+        return view.usesCollationKeys(options)
+                && options.getStartKeyDocId() == null && options.getEndKeyDocId() == null
+                && options.getSkip() == 0 && options.getLimit() == Integer.MAX_VALUE;
+    }
+
+    /**
+     * Stops keeping the view's reduces rows; the next update() rebuilds them. Called before its
+     * map rows are all deleted, so the triggers don't record each one.
+     */
+    static void invalidate(Database database, int viewId) {
+        database.getDatabase().execSQL("DELETE FROM reduce_views WHERE view_id=?", new Object[]{viewId});
+    }
+
+    /**
+     * Brings the view's reduces rows up to date, or drops them if it no longer wants them.
+     * Must be called in a transaction.
+     */
+    void update() {
+        int viewId = view.getViewId();
+        if (viewId <= 0) {
+            return;
+        }
+        if (!isEnabled(view)) {
+            invalidate(database, viewId);
+            return;
+        }
+        try {
+            if (isListed(viewId)) {
+                reduceDirtyKeys(viewId);
+            } else {
+                rebuild(viewId);
+            }
+        } catch (SQLException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // e.g. the reduce function threw; fall back to reducing at query time
+            Log.e(Log.TAG_VIEW, "Error updating materialized reduce of view " + view.getName(), e);
+            invalidate(database, viewId);
+        }
+    }
+
+    /**
+     * Runs a reduced or grouped query from the reduces rows.
+     */
+    List<QueryRow> query(SQLiteStorageEngine connection, QueryOptions options, boolean group,
+                         int groupLevel, Predicate<QueryRow> postFilter) {
+        List<Object> argsList = new ArrayList<Object>();
+        argsList.add(view.getViewId());
+        String sql = "SELECT key, value FROM reduces WHERE view_id=?" +
+                view.keyConditionsSQL(options, "collation_key", true, "", argsList) +
+                " ORDER BY collation_key";
+        if (options.isDescending()) {
+            sql += " DESC";
+        }
+
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        List<Object> keys = new ArrayList<Object>();
+        List<Object> values = new ArrayList<Object>();
+        Object lastKey = null;
+        Cursor cursor = null;
+        try {
+            cursor = connection.rawQuery(sql, argsList.toArray(new Object[argsList.size()]));
+            while (cursor.moveToNext()) {
+                Object key = new JsonDocument(cursor.getBlob(0)).jsonObject();
+                Object value = new JsonDocument(cursor.getBlob(1)).jsonObject();
+                if (group && !keys.isEmpty() && !View.groupTogether(key, lastKey, groupLevel)) {
+                    addRow(rows, View.groupKey(lastKey, groupLevel), keys, values, postFilter);
+                    keys.clear();
+                    values.clear();
+                }
+                lastKey = key;
+                keys.add(key);
+                values.add(value);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (!keys.isEmpty()) {
+            addRow(rows, group ? View.groupKey(lastKey, groupLevel) : null, keys, values, postFilter);
+        }
+        return rows;
+    }
+
+    private void addRow(List<QueryRow> rows, Object key, List<Object> keys, List<Object> values,
+                        Predicate<QueryRow> postFilter) {
+        Object reduced = (values.size() == 1) ? values.get(0) : view.getReduce().reduce(keys, values, true);
+        QueryRow row = new QueryRow(null, 0, key, reduced, null);
+        row.setDatabase(database);
+        if (postFilter == null || postFilter.apply(row)) {
+            rows.add(row);
+        }
+    }
+
+    private boolean isListed(int viewId) {
+        Cursor cursor = null;
+        try {
+            cursor = database.getDatabase().rawQuery("SELECT 1 FROM reduce_views WHERE view_id=?",
+                    new Object[]{viewId});
+            return cursor.moveToNext();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Reduces every key of the view from its map rows, and lists the view in reduce_views.
+     */
+    private void rebuild(int viewId) {
+        SQLiteStorageEngine storage = database.getDatabase();
+        storage.execSQL("INSERT INTO reduce_views (view_id) VALUES (?)", new Object[]{viewId});
+        Cursor cursor = null;
+        try {
+            cursor = storage.rawQuery("SELECT collation_key, key, value FROM maps WHERE view_id=? " +
+                    "ORDER BY collation_key", new Object[]{viewId});
+            reduceRows(viewId, cursor);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        Log.v(Log.TAG_VIEW, "Rebuilt materialized reduce of view %s", view.getName());
+    }
+
+    /**
+     * Reduces again the keys listed in reduces_dirty.
+     */
+    private void reduceDirtyKeys(int viewId) {
+        SQLiteStorageEngine storage = database.getDatabase();
+        Object[] args = {viewId};
+        storage.execSQL("DELETE FROM reduces WHERE view_id=? AND collation_key IN " +
+                "(SELECT collation_key FROM reduces_dirty WHERE view_id=?)", new Object[]{viewId, viewId});
+        Cursor cursor = null;
+        try {
+            cursor = storage.rawQuery("SELECT collation_key, key, value FROM maps WHERE view_id=? AND collation_key IN " +
+                    "(SELECT collation_key FROM reduces_dirty WHERE view_id=?) ORDER BY collation_key",
+                    new Object[]{viewId, viewId});
+            reduceRows(viewId, cursor);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        storage.execSQL("DELETE FROM reduces_dirty WHERE view_id=?", args);
+    }
+
+    /**
+     * Reduces the map rows of each key in the cursor (collation_key, key, value; in
+     * collation_key order) and inserts the results. Keys that collate equally (like 1 and 1.0)
+     * share a row, which returns the first one's JSON.
+     */
+    private void reduceRows(int viewId, Cursor cursor) {
+        byte[] lastKey = null;
+        String lastKeyJson = null;
+        List<Object> keys = new ArrayList<Object>();
+        List<Object> values = new ArrayList<Object>();
+        while (cursor.moveToNext()) {
+            byte[] collationKey = cursor.getBlob(0);
+            if (lastKey != null && !Arrays.equals(collationKey, lastKey)) {
+                insertReduced(viewId, lastKey, lastKeyJson, keys, values);
+                keys.clear();
+                values.clear();
+            }
+            if (keys.isEmpty()) {
+                lastKey = collationKey;
+                lastKeyJson = cursor.getString(1);
+            }
+            keys.add(new JsonDocument(cursor.getBlob(1)).jsonObject());
+            values.add(new JsonDocument(cursor.getBlob(2)).jsonObject());
+        }
+        if (lastKey != null) {
+            insertReduced(viewId, lastKey, lastKeyJson, keys, values);
+        }
+    }
+
+    private void insertReduced(int viewId, byte[] collationKey, String keyJson, List<Object> keys,
+                               List<Object> values) {
+        Object reduced = view.getReduce().reduce(keys, values, false);
+        String valueJson;
+        try {
+            valueJson = (reduced == null) ? null : Manager.getObjectMapper().writeValueAsString(reduced);
+        } catch (Exception e) {
+            throw new IllegalStateException("Reduced value can't be stored as JSON", e);
+        }
+        SQLiteStatement statement = database.getCompiledStatement(
+                "INSERT INTO reduces (view_id, collation_key, key, value) VALUES (?,?,?,?)");
+        try {
+            statement.bindLong(1, viewId);
+            statement.bindBlob(2, collationKey);
+            statement.bindString(3, keyJson);
+            if (valueJson != null) {
+                statement.bindString(4, valueJson);
+            } else {
+                statement.bindNull(4);
+            }
+            statement.execute();
+        } finally {
+            database.releaseStatement(statement);
+        }
+    }
+}
@@ -80,6 +80,13 @@ public class Query {
      */
     private String endKeyDocId;
 
+    /**
+     * For _all_docs queries: if non-nil, start with the first document after this document ID
+     * (before it, if descending). Pass the last document ID of one page to get the next page;
+     * unlike skip, this doesn't step over the earlier rows.
+     */
+    private String startAfterDocId;
+
     /**
      * If YES (the default) the endKey (or endKeyDocID) comparison uses "<=". Else it uses "<".
      */
@@ -294,6 +301,16 @@ public class Query {
         this.endKeyDocId = endKeyDocId;
     }
 
+    @InterfaceAudience.Public
+    public String getStartAfterDocId() {
+        return startAfterDocId;
+    }
+
+    @InterfaceAudience.Public
+    public void setStartAfterDocId(String startAfterDocId) {
+        this.startAfterDocId = startAfterDocId;
+    }
+
     @InterfaceAudience.Public
     public IndexUpdateMode getIndexUpdateMode() {
         return indexUpdateMode;
@@ -397,6 +414,19 @@ public class Query {
         return new QueryEnumerator(database, rows, lastSequence);
     }
 
+    /**
+     * Runs an _all_docs query, returning an enumerator that reads the rows from the database as
+     * they're iterated instead of loading them all first. Close it if you stop early.
+     * Not available for view queries.
+     */
+    @InterfaceAudience.Public
+    public AllDocsEnumerator enumerateAllDocs() throws CouchbaseLiteException {
+        if (view != null) {
+            throw new CouchbaseLiteException("enumerateAllDocs() only applies to all-docs queries", Status.BAD_REQUEST);
+        }
+        return database.getAllDocsEnumerator(getQueryOptions());
+    }
+
     /**
      * Returns a live query with the same parameters.
      */
@@ -485,6 +515,7 @@ public class Query {
         queryOptions.setAllDocsMode(getAllDocsMode());
         queryOptions.setStartKeyDocId(getStartKeyDocId());
         queryOptions.setEndKeyDocId(getEndKeyDocId());
+        queryOptions.setStartAfterDocId(getStartAfterDocId());
         queryOptions.setPostFilter(getPostFilter());
         return queryOptions;
     }
@@ -49,6 +49,7 @@ public class QueryOptions {
 
     private String startKeyDocId;
     private String endKeyDocId;
+    private String startAfterDocId;
 
     private Predicate<QueryRow> postFilter;
 
@@ -205,6 +206,14 @@ public class QueryOptions {
         this.endKeyDocId = endKeyDocId;
     }
 
+    public String getStartAfterDocId() {
+        return startAfterDocId;
+    }
+
+    public void setStartAfterDocId(String startAfterDocId) {
+        this.startAfterDocId = startAfterDocId;
+    }
+
     public Predicate<QueryRow> getPostFilter() {
         return postFilter;
     }
@@ -27,7 +27,6 @@ import com.couchbase.lite.storage.SQLException;
 import com.couchbase.lite.storage.SQLiteStorageEngine;
 import com.couchbase.lite.support.JsonDocument;
 import com.couchbase.lite.util.Log;
-import com.couchbase.lite.util.Utils;
 
 import java.util.ArrayList;
 import java.util.EnumSet;
@@ -58,6 +57,7 @@ public final class View {
     private Mapper mapBlock;
     private Reducer reduceBlock;
     private TDViewCollation collation;
+    private boolean reduceMaterialized = false;
     private static ViewCompiler compiler;
 
     /**
@@ -255,9 +255,11 @@ public final class View {
         try {
             database.beginTransaction();
 
-            String[] whereArgs = { Integer.toString(getViewId()) };
-            database.getDatabase().delete("maps", "view_id=?", whereArgs);
+            MaterializedReduce.invalidate(database, getViewId());
+            Object[] args = { getViewId() };
+            database.getDatabase().execSQL("DELETE FROM maps WHERE view_id=?", args);
 
+            String[] whereArgs = { Integer.toString(getViewId()) };
             ContentValues updateValues = new ContentValues();
             updateValues.put("lastSequence", 0);
             database.getDatabase().update("views", updateValues, "view_id=?",
@@ -322,7 +324,7 @@ public final class View {
 
         int totalRows = -1;
         String sql = "SELECT total_docs FROM views WHERE view_id=?";
-        String[] args = { String.valueOf(viewId) };
+        Object[] args = { viewId };
         Cursor cursor = null;
         try {
             cursor = database.getDatabase().rawQuery(sql, args);
@@ -347,10 +349,10 @@ public final class View {
         return totalRows;
     }
 
-    private int countTotalRows(){
+    /* package */ int countTotalRows(){
         int totalRows = -1;
         String sql = "SELECT COUNT(view_id) FROM maps WHERE view_id=?";
-        String[] args = { String.valueOf(viewId) };
+        Object[] args = { viewId };
         Cursor cursor = null;
         try {
             cursor = database.getDatabase().rawQuery(sql, args);
@@ -425,233 +427,57 @@ public final class View {
     }
 
     /**
-     * Updates the view's index (incrementally) if necessary.
+     * Does the view keep its reduced values up to date as it's indexed?
+     */
+    @InterfaceAudience.Public
+    public boolean isReduceMaterialized() {
+        return reduceMaterialized;
+    }
+
+    /**
+     * Makes the view keep the reduced value of each of its keys up to date as it's indexed, so
+     * that reduced and grouped queries combine those values instead of reducing every row in
+     * range. The reduce function must then support rereduce: it will be called with
+     * rereduce=true to combine values it returned earlier. Like the functions themselves, this
+     * must be set again on every launch of the app.
+     */
+    @InterfaceAudience.Public
+    public void setReduceMaterialized(boolean reduceMaterialized) {
+        this.reduceMaterialized = reduceMaterialized;
+    }
+
+    /**
+     * Updates the view's index (incrementally) if necessary. The other views of the same design
+     * document (the part of the name before the '/') are brought up to date in the same pass.
      * @return 200 if updated, 304 if already up-to-date, else an error code
      * @exclude
      */
-    @SuppressWarnings("unchecked")
     @InterfaceAudience.Private
     public void updateIndex() throws CouchbaseLiteException {
-        Log.v(Log.TAG_VIEW, "Re-indexing view: %s", name);
-        assert (mapBlock != null);
-
-        if (getViewId() <= 0) {
-            String msg = String.format("getViewId() < 0");
-            throw new CouchbaseLiteException(msg, new Status(Status.NOT_FOUND));
-        }
-
-        database.beginTransaction();
-        Status result = new Status(Status.INTERNAL_SERVER_ERROR);
-        Cursor cursor = null;
-
-        try {
-            long last = getLastSequenceIndexed();
-            long dbMaxSequence = database.getLastSequenceNumber();
-            long minLastSequence = dbMaxSequence;
-
-            // First remove obsolete emitted results from the 'maps' table:
-            if (last < 0) {
-                String msg = String.format("last < 0 (%s)", last);
-                throw new CouchbaseLiteException(msg, new Status(Status.INTERNAL_SERVER_ERROR));
-            }
-            else if(last < dbMaxSequence) {
-                minLastSequence = Math.min(minLastSequence, last);
-
-                if (last == 0) {
-
-                    // If the lastSequence has been reset to 0, make sure to remove
-                    // any leftover rows:
-                    String[] whereArgs = {Integer.toString(getViewId())};
-                    database.getDatabase().delete("maps", "view_id=?", whereArgs);
-                } else {
-                    database.optimizeSQLIndexes();
-                    // Delete all obsolete map results (ones from since-replaced
-                    // revisions):
-                    String[] args = {Integer.toString(getViewId()),
-                            Long.toString(last),
-                            Long.toString(last)};
-                    database.getDatabase().execSQL(
-                            "DELETE FROM maps WHERE view_id=? AND sequence IN ("
-                                    + "SELECT parent FROM revs WHERE sequence>? "
-                                    + "AND +parent>0 AND +parent<=?)", args);
-                }
-            }
-
-            if(minLastSequence == dbMaxSequence) {
-                // nothing to do (eg,  kCBLStatusNotModified)
-                Log.v(Log.TAG_VIEW, "minLastSequence (%s) == dbMaxSequence (%s), nothing to do", minLastSequence, dbMaxSequence);
-                result.setCode(Status.NOT_MODIFIED);
-                return;
-            }
-
-            // This is the emit() block, which gets called from within the
-            // user-defined map() block
-            // that's called down below.
-            AbstractTouchMapEmitBlock emitBlock = new AbstractTouchMapEmitBlock() {
-                @Override
-                public void emit(Object key, Object value) {
-                    try {
-                        String valueJson;
-                        String keyJson = Manager.getObjectMapper().writeValueAsString(key);
-                        if (value==null) {
-                            valueJson = null;
-                        } else{
-                            valueJson = Manager.getObjectMapper().writeValueAsString(value);
-                        }
-
-                        // NOTE: execSQL() is little faster than insert()
-                        String[] args = { Integer.toString(getViewId()),  Long.toString(sequence), keyJson, valueJson };
-                        database.getDatabase().execSQL("INSERT INTO maps (view_id, sequence, key, value) VALUES(?,?,?,?) ", args);
-                    } catch (Exception e) {
-                        Log.e(Log.TAG_VIEW, "Error emitting", e);
-                        // find a better way to propagate this back
-                    }
-                }
-            };
-
-            // Now scan every revision added since the last time the view was indexed:
-
-            // NOTE: Below is original Query. In case query result uses a lot of memory,
-            //       Android SQLiteDatabase causes null value column. Then it causes the missing
-            //       index data because following logic skip result if column is null.
-            //       To avoid the issue, retrieving json field is isolated from original query.
-            //       Because json field could be large, maximum size is 2MB.
-            // StringBuffer sql = new StringBuffer( "SELECT revs.doc_id, sequence, docid, revid, json, no_attachments, deleted FROM revs, docs WHERE sequence>? AND current!=0 ");
-
-            StringBuffer sql = new StringBuffer( "SELECT revs.doc_id, sequence, docid, revid, no_attachments, deleted FROM revs, docs WHERE sequence>? AND current!=0 ");
-            if(minLastSequence == 0) {
-                sql.append("AND deleted=0 ");
-            }
-            sql.append("AND revs.doc_id = docs.doc_id ORDER BY revs.doc_id, revid DESC");
-            String[] selectArgs = { Long.toString(minLastSequence) };
-            cursor = database.getDatabase().rawQuery(sql.toString(), selectArgs);
-
-            boolean keepGoing = cursor.moveToNext();
-            while (keepGoing) {
-
-                // NOTE: skip row if 1st column is null
-                // https://github.com/couchbase/couchbase-lite-java-core/issues/497
-                if (cursor.isNull(0)) {
-                    keepGoing = cursor.moveToNext();
-                    continue;
-                }
-
-                long docID = cursor.getLong(0);
-
-                // Reconstitute the document as a dictionary:
-                long sequence = cursor.getLong(1);
-                String docId = cursor.getString(2);
-                if(docId.startsWith("_design/")) {  // design docs don't get indexed!
-                    keepGoing = cursor.moveToNext();
-                    continue;
-                }
-                String revId = cursor.getString(3);
-
-                boolean noAttachments = cursor.getInt(4) > 0;
-                boolean deleted = cursor.getInt(5) > 0;
-
-                while ((keepGoing = cursor.moveToNext()) && (cursor.isNull(0) || cursor.getLong(0) == docID)) {
-                    // Skip rows with the same doc_id -- these are losing conflicts.
-
-                    // NOTE: Or Skip rows if 1st column is null
-                    // https://github.com/couchbase/couchbase-lite-java-core/issues/497
-                }
+        database.updateIndexes(getViewsInGroup());
+    }
 
-                if (minLastSequence > 0) {
-                    // Find conflicts with documents from previous indexings.
-                    String[] selectArgs2 = { Long.toString(docID), Long.toString(minLastSequence) };
-
-                    Cursor cursor2 = null;
-                    try {
-                        cursor2 = database.getDatabase().rawQuery(
-                                "SELECT revid, sequence FROM revs "
-                                        + "WHERE doc_id=? AND sequence<=? AND current!=0 AND deleted=0 "
-                                        + "ORDER BY revID DESC "
-                                        + "LIMIT 1", selectArgs2);
-
-                        if (cursor2.moveToNext()) {
-                            String oldRevId = cursor2.getString(0);
-                            // This is the revision that used to be the 'winner'.
-                            // Remove its emitted rows:
-                            long oldSequence = cursor2.getLong(1);
-                            String[] args = {
-                                    Integer.toString(getViewId()),
-                                    Long.toString(oldSequence)
-                            };
-                            database.getDatabase().execSQL(
-                                    "DELETE FROM maps WHERE view_id=? AND sequence=?", args);
-                            if (deleted || RevisionInternal.CBLCompareRevIDs(oldRevId, revId) > 0) {
-                                // It still 'wins' the conflict, so it's the one that
-                                // should be mapped [again], not the current revision!
-                                revId = oldRevId;
-                                sequence = oldSequence;
-                                deleted = false;
-                            }
-                        }
-                    } finally {
-                        if (cursor2 != null) {
-                            cursor2.close();
-                        }
+    /**
+     * Returns this view and the other views of the same design document.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public List<View> getViewsInGroup() {
+        List<View> group = new ArrayList<View>();
+        group.add(this);
+        int slash = name.indexOf('/');
+        if (slash > 0) {
+            String prefix = name.substring(0, slash + 1);
+            List<View> allViews = database.getAllViews();
+            if (allViews != null) {
+                for (View view : allViews) {
+                    if (view != this && view.getName().startsWith(prefix)) {
+                        group.add(view);
                     }
                 }
-
-                if(deleted){
-                    continue;
-                }
-
-                String[] selectArgs3 = { Long.toString(sequence) };
-                byte[] json = Utils.byteArrayResultForQuery(database.getDatabase(), "SELECT json FROM revs WHERE sequence=?", selectArgs3);
-
-                // Get the document properties, to pass to the map function:
-                EnumSet<TDContentOptions> contentOptions = EnumSet.noneOf(Database.TDContentOptions.class);
-                if (noAttachments)
-                    contentOptions.add(TDContentOptions.TDNoAttachments);
-                Map<String, Object> properties = database.documentPropertiesFromJSON(
-                        json,
-                        docId,
-                        revId,
-                        false,
-                        sequence,
-                        contentOptions
-                );
-                if (properties != null) {
-                    // Call the user-defined map() to emit new key/value
-                    // pairs from this revision:
-                    emitBlock.setSequence(sequence);
-                    mapBlock.map(properties, emitBlock);
-
-                    properties.clear();
-                    properties = null;
-                }
-                json = null;
-            }
-
-            // Finally, record the last revision sequence number that was
-            // indexed:
-            ContentValues updateValues = new ContentValues();
-            updateValues.put("lastSequence", dbMaxSequence);
-            updateValues.put("total_docs", countTotalRows());
-            String[] whereArgs = { Integer.toString(getViewId()) };
-            database.getDatabase().update("views", updateValues, "view_id=?", whereArgs);
-
-            // FIXME actually count number added :)
-            Log.v(Log.TAG_VIEW, "Finished re-indexing view: %s " + " up to sequence %s", name, dbMaxSequence);
-            result.setCode(Status.OK);
-        }
-        catch (SQLException e) {
-            throw new CouchbaseLiteException(e, new Status(Status.DB_ERROR));
-        }
-        finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-            if (!result.isSuccessful()) {
-                Log.w(Log.TAG_VIEW, "Failed to rebuild view %s.  Result code: %d", name, result.getCode());
-            }
-            if(database != null) {
-                database.endTransaction(result.isSuccessful());
             }
         }
+        return group;
     }
 
     /**
@@ -659,6 +485,16 @@ public final class View {
      */
     @InterfaceAudience.Private
     public Cursor resultSetWithOptions(QueryOptions options) {
+        return resultSetWithOptions(options, database.getDatabase());
+    }
+
+    /**
+     * Runs the query on the given connection, e.g. one from Database.acquireReadConnection().
+     *
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    Cursor resultSetWithOptions(QueryOptions options, SQLiteStorageEngine connection) {
         if (options == null) {
             options = new QueryOptions();
         }
@@ -673,22 +509,58 @@ public final class View {
             collationStr += " COLLATE JSON_RAW";
         }
 
+        // Compare keys by their collation_key, which doesn't need the JSON collator, if possible
+        boolean collationKeys = usesCollationKeys(options);
+        String keyColumn = collationKeys ? "collation_key" : "key";
+        if (collationKeys) {
+            collationStr = "";
+        }
+
+        // Rows return the key column, parsed as JSON: collation_key isn't lossless
         String sql = "SELECT key, value, docid, revs.sequence";
         if (options.isIncludeDocs()) {
             sql = sql + ", revid, json";
         }
         sql = sql + " FROM maps, revs, docs WHERE maps.view_id=?";
 
-        List<String> argsList = new ArrayList<String>();
-        argsList.add(Integer.toString(getViewId()));
+        List<Object> argsList = new ArrayList<Object>();
+        argsList.add(getViewId());
+
+        sql += keyConditionsSQL(options, keyColumn, collationKeys, collationStr, argsList);
+
+        sql = sql
+                + " AND revs.sequence = maps.sequence AND docs.doc_id = revs.doc_id ORDER BY " + keyColumn;
+        sql += collationStr;
+
+        if (options.isDescending()) {
+            sql = sql + " DESC";
+        }
+
+        sql = sql + " LIMIT ? OFFSET ?";
+        argsList.add(options.getLimit());
+        argsList.add(options.getSkip());
+
+        Log.v(Log.TAG_VIEW, "Query %s: %s | args: %s", name, sql, argsList);
+
+        Cursor cursor = connection.rawQuery(sql,
+                argsList.toArray(new Object[argsList.size()]));
+        return cursor;
+    }
+
+    /**
+     * Returns the SQL conditions (each starting with " AND") that select the rows with the
+     * options' keys or key range, adding their parameters to argsList.
+     */
+    String keyConditionsSQL(QueryOptions options, String keyColumn, boolean collationKeys,
+                            String collationStr, List<Object> argsList) {
+        String sql = "";
 
         if(options.getKeys() != null) {
-            sql += " AND key in (";
-            String item = "?";
+            sql += " AND " + keyColumn + " in (";
+            String item = "";
             for (Object key : options.getKeys()) {
-                sql += item;
-                item = ", ?";
-                argsList.add(toJSONString(key));
+                sql += item + keySQL(key, collationKeys, argsList);
+                item = ", ";
             }
             sql += ")";
         }
@@ -712,17 +584,16 @@ public final class View {
 
         if (minKey != null) {
             if (inclusiveMin) {
-                sql += " AND key >= ?";
+                sql += " AND " + keyColumn + " >= ";
             } else {
-                sql += " AND key > ?";
+                sql += " AND " + keyColumn + " > ";
             }
+            sql += keySQL(minKey, collationKeys, argsList);
             sql += collationStr;
-            String minKeyJSON = toJSONString(minKey);
-            argsList.add(minKeyJSON);
             if (minKeyDocId != null && inclusiveMin) {
-                //OPT: This calls the JSON collator a 2nd time unnecessarily.
-                sql += String.format(" AND (key > ? %s OR docid >= ?)", collationStr);
-                argsList.add(minKeyJSON);
+                //OPT: With the JSON collator, this calls it a 2nd time unnecessarily.
+                sql += String.format(" AND (%s > %s %s OR docid >= ?)", keyColumn,
+                        keySQL(minKey, collationKeys, argsList), collationStr);
                 argsList.add(minKeyDocId);
             }
         }
@@ -730,37 +601,46 @@ public final class View {
         if (maxKey != null) {
             maxKey = keyForPrefixMatch(maxKey, options.getPrefixMatchLevel());
             if (inclusiveMax) {
-                sql += " AND key <= ?";
+                sql += " AND " + keyColumn + " <= ";
             } else {
-                sql += " AND key < ?";
+                sql += " AND " + keyColumn + " < ";
             }
+            sql += keySQL(maxKey, collationKeys, argsList);
             sql += collationStr;
-            String maxKeyJSON = toJSONString(maxKey);
-            argsList.add(maxKeyJSON);
             if (maxKeyDocId != null && inclusiveMax) {
-                sql += String.format(" AND (key < ? %s OR docid <= ?)", collationStr);
-                argsList.add(maxKeyJSON);
+                sql += String.format(" AND (%s < %s %s OR docid <= ?)", keyColumn,
+                        keySQL(maxKey, collationKeys, argsList), collationStr);
                 argsList.add(maxKeyDocId);
             }
         }
+        return sql;
+    }
 
-        sql = sql
-                + " AND revs.sequence = maps.sequence AND docs.doc_id = revs.doc_id ORDER BY key";
-        sql += collationStr;
-
-        if (options.isDescending()) {
-            sql = sql + " DESC";
+    /**
+     * Whether a query with these options compares keys by the maps table's collation_key column
+     * (see CollatableKey) instead of calling the JSON collator on key. Raw-collated views always use the JSON collator; so do Unicode-collated ones for a
+     * prefix match, since a string's collation key can't be extended to cover every string it's
+     * a prefix of.
+     */
+    boolean usesCollationKeys(QueryOptions options) {
+        if (collation == TDViewCollation.TDViewCollationRaw) {
+            return false;
         }
+        return collation == TDViewCollation.TDViewCollationASCII || options.getPrefixMatchLevel() <= 0;
+    }
 
-        sql = sql + " LIMIT ? OFFSET ?";
-        argsList.add(Integer.toString(options.getLimit()));
-        argsList.add(Integer.toString(options.getSkip()));
-
-        Log.v(Log.TAG_VIEW, "Query %s: %s | args: %s", name, sql, argsList);
-
-        Cursor cursor = database.getDatabase().rawQuery(sql,
-                argsList.toArray(new String[argsList.size()]));
-        return cursor;
+    /**
+     * Returns the SQL for a key to compare with: a parameter bound to its collation key (as a
+     * BLOB) or to its JSON.
+     */
+    private String keySQL(Object key, boolean collationKeys, List<Object> argsList) {
+        if (collationKeys) {
+            boolean unicode = (collation != TDViewCollation.TDViewCollationASCII);
+            argsList.add(CollatableKey.encode(key, unicode));
+        } else {
+            argsList.add(toJSONString(key));
+        }
+        return "?";
     }
 
 
@@ -846,7 +726,7 @@ public final class View {
             return null;
         }
 
-        String[] selectArgs = { Integer.toString(getViewId()) };
+        Object[] selectArgs = { getViewId() };
         Cursor cursor = null;
         List<Map<String, Object>> result = null;
 
@@ -962,12 +842,12 @@ public final class View {
             options = new QueryOptions();
         }
 
+        SQLiteStorageEngine reader = database.acquireReadConnection();
         Cursor cursor = null;
         List<QueryRow> rows = new ArrayList<QueryRow>();
         Predicate<QueryRow> postFilter = options.getPostFilter();
 
         try {
-            cursor = resultSetWithOptions(options);
             int groupLevel = options.getGroupLevel();
             boolean group = options.isGroup() || (groupLevel > 0);
             boolean reduce = options.isReduce() || group;
@@ -977,11 +857,18 @@ public final class View {
                 throw new CouchbaseLiteException(new Status(Status.BAD_REQUEST));
             }
 
-            if (reduce || group) {
+            if (reduce && reduceBlock != null && MaterializedReduce.isEnabled(this)
+                    && MaterializedReduce.canAnswer(this, options)
+                    && MaterializedReduce.isUpToDate(reader, getViewId())) {
+                // Reduced or grouped query, from the materialized reduce:
+                rows = new MaterializedReduce(database, this).query(reader, options, group, groupLevel, postFilter);
+            } else if (reduce || group) {
                 // Reduced or grouped query:
+                cursor = resultSetWithOptions(options, reader);
                 rows = reducedQuery(cursor, group, groupLevel, postFilter);
             } else {
                 // regular query
+                cursor = resultSetWithOptions(options, reader);
                 cursor.moveToNext();
                 while (!cursor.isAfterLast()) {
                     JsonDocument keyDoc = new JsonDocument(cursor.getBlob(0));
@@ -1031,6 +918,7 @@ public final class View {
             if (cursor != null) {
                 cursor.close();
             }
+            database.releaseReadConnection(reader);
         }
 
         return rows;
@@ -1056,14 +944,3 @@ public final class View {
     }
 
 }
-
-@InterfaceAudience.Private
-abstract class AbstractTouchMapEmitBlock implements Emitter {
-
-    protected long sequence = 0;
-
-    void setSequence(long sequence) {
-        this.sequence = sequence;
-    }
-
-}
@@ -0,0 +1,584 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.Database.TDContentOptions;
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.storage.ContentValues;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.SQLiteStatement;
+import com.couchbase.lite.storage.SQLiteStorageEngine;
+import com.couchbase.lite.support.BodyEncoding;
+import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.Utils;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Does the work of Database.updateIndexes() for a set of views that were last indexed up to the
+ * same sequence, as a pipeline:
+ * <ol>
+ *   <li>a reader walks the revisions added since the views were last indexed, a chunk of
+ *       documents per query, picks each document's winning revision and reads its body and
+ *       attachment metadata; the previous winners of a chunk's documents are looked up together;</li>
+ *   <li>map workers parse each body once, call every view's map function on the same properties
+ *       and encode the emitted keys and values as JSON, and the keys as CollatableKeys too;</li>
+ *   <li>a writer inserts the emitted rows into the maps table, many to a statement, in the order
+ *       the reader read the documents.</li>
+ * </ol>
+ * The reader and the writer both use the database connection, so they take turns on the calling
+ * thread, inside the indexing transaction. The map workers run on the Manager's map executor if
+ * ManagerOptions.setMapThreadCount() enabled one (which requires thread-safe map functions);
+ * otherwise each document is mapped on the calling thread as soon as it's read.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+class ViewIndexer {
+
+    // How many documents may be read ahead of the writer, per map thread
+    private static final int MAX_PENDING_PER_THREAD = 64;
+
+    // How many revision rows (with their bodies) the reader fetches per query
+    private static final int READ_CHUNK_SIZE = 100;
+
+    // How many map rows go in one INSERT; each takes 5 of SQLite's 999 parameters
+    private static final int MAP_ROWS_PER_INSERT = 100;
+
+    private static final String INSERT_MAP_ROW_SQL =
+            "INSERT INTO maps (view_id, sequence, key, value, collation_key) VALUES(?,?,?,?,?)";
+    private static final String INSERT_MAP_ROWS_SQL = insertMapRowsSQL(MAP_ROWS_PER_INSERT);
+
+    private final Database database;
+    private final List<View> views;
+    private final int[] viewIds;
+    private final ExecutorService mapExecutor;
+    private final int maxPending;
+
+    // Map rows waiting to be inserted: {view_id, sequence, key, value, collation_key}
+    private final List<Object[]> rowBuffer = new ArrayList<Object[]>(MAP_ROWS_PER_INSERT);
+
+    // Set when indexing stops early, so queued map jobs return without mapping
+    private volatile boolean abandoned = false;
+
+    /**
+     * A document's winning revision, as read by the reader.
+     */
+    private static class IndexRow {
+        final long docID;
+        final String docId;
+        long sequence;
+        String revId;
+        boolean noAttachments;
+        boolean deleted;
+        byte[] json;
+
+        IndexRow(long docID, String docId) {
+            this.docID = docID;
+            this.docId = docId;
+        }
+    }
+
+    /**
+     * A document to be mapped, and the rows each view's map call emitted.
+     */
+    private class MapJob implements Callable<MapJob> {
+        final long sequence;
+        final byte[] json;
+        final Map<String, Object> extra;
+        final List<List<Object[]>> emitted = new ArrayList<List<Object[]>>(views.size());
+
+        MapJob(long sequence, byte[] json, Map<String, Object> extra) {
+            this.sequence = sequence;
+            this.json = json;
+            this.extra = extra;
+        }
+
+        @Override
+        public MapJob call() throws Exception {
+            if (abandoned) {
+                return this;
+            }
+            Map<String, Object> properties = parseProperties();
+            for (View view : views) {
+                final List<Object[]> rows = new ArrayList<Object[]>();
+                final boolean unicode = (view.getCollation() != View.TDViewCollation.TDViewCollationASCII);
+                emitted.add(rows);
+                if (properties == null) {
+                    continue;
+                }
+                // Call the user-defined map() to emit new key/value pairs from this revision:
+                view.getMap().map(properties, new Emitter() {
+                    @Override
+                    public void emit(Object key, Object value) {
+                        try {
+                            String keyJson = Manager.getObjectMapper().writeValueAsString(key);
+                            String valueJson = (value == null) ? null : Manager.getObjectMapper().writeValueAsString(value);
+                            byte[] collationKey = CollatableKey.encode(key, unicode);
+                            rows.add(new Object[]{keyJson, valueJson, collationKey});
+                        } catch (Exception e) {
+                            Log.e(Log.TAG_VIEW, "Error emitting", e);
+                            // find a better way to propagate this back
+                        }
+                    }
+                });
+            }
+            return this;
+        }
+
+        /**
+         * Same result as Database.documentPropertiesFromJSON(), with the parts that need the
+         * database (extra) already looked up by the reader.
+         */
+        @SuppressWarnings("unchecked")
+        private Map<String, Object> parseProperties() {
+            byte[] body = database.decodeDocumentJSON(json);
+            if (body == null) {
+                return extra;
+            }
+            try {
+                Map<String, Object> properties = BodyEncoding.mapperFor(body).readValue(body, Map.class);
+                properties.putAll(extra);
+                return properties;
+            } catch (Exception e) {
+                Log.e(Database.TAG, "Error serializing properties to JSON", e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The views must all have map functions and the same lastSequenceIndexed.
+     */
+    ViewIndexer(Database database, List<View> views) {
+        this.database = database;
+        this.views = views;
+        this.viewIds = new int[views.size()];
+        int threads = database.getManager().getMapThreadCount();
+        this.mapExecutor = (threads > 0) ? database.getManager().getMapExecutor() : null;
+        this.maxPending = Math.max(threads, 1) * MAX_PENDING_PER_THREAD;
+    }
+
+    /**
+     * Updates the views' indexes (incrementally) if necessary.
+     */
+    @SuppressWarnings("unchecked")
+    void run() throws CouchbaseLiteException {
+        Log.v(Log.TAG_VIEW, "Re-indexing views: %s", viewNames());
+
+        for (int i = 0; i < views.size(); i++) {
+            assert (views.get(i).getMap() != null);
+            viewIds[i] = views.get(i).getViewId();
+            if (viewIds[i] <= 0) {
+                String msg = String.format("getViewId() < 0");
+                throw new CouchbaseLiteException(msg, new Status(Status.NOT_FOUND));
+            }
+        }
+
+        database.beginTransaction();
+        Status result = new Status(Status.INTERNAL_SERVER_ERROR);
+        LinkedList<Future<MapJob>> pending = new LinkedList<Future<MapJob>>();
+
+        try {
+            long last = views.get(0).getLastSequenceIndexed();
+            long dbMaxSequence = database.getLastSequenceNumber();
+            long minLastSequence = dbMaxSequence;
+
+            // First remove obsolete emitted results from the 'maps' table:
+            if (last < 0) {
+                String msg = String.format("last < 0 (%s)", last);
+                throw new CouchbaseLiteException(msg, new Status(Status.INTERNAL_SERVER_ERROR));
+            }
+            else if(last < dbMaxSequence) {
+                minLastSequence = Math.min(minLastSequence, last);
+
+                if (last == 0) {
+
+                    // If the lastSequence has been reset to 0, make sure to remove
+                    // any leftover rows:
+                    for (int viewId : viewIds) {
+                        MaterializedReduce.invalidate(database, viewId);
+                        Object[] args = {viewId};
+                        database.getDatabase().execSQL("DELETE FROM maps WHERE view_id=?", args);
+                    }
+                } else {
+                    database.optimizeSQLIndexes();
+                    // Delete all obsolete map results (ones from since-replaced
+                    // revisions):
+                    for (int viewId : viewIds) {
+                        String[] args = {Integer.toString(viewId),
+                                Long.toString(last),
+                                Long.toString(last)};
+                        database.getDatabase().execSQL(
+                                "DELETE FROM maps WHERE view_id=? AND sequence IN ("
+                                        + "SELECT parent FROM revs WHERE sequence>? "
+                                        + "AND +parent>0 AND +parent<=?)", args);
+                    }
+                }
+            }
+
+            if(minLastSequence == dbMaxSequence) {
+                // nothing to do (eg,  kCBLStatusNotModified)
+                Log.v(Log.TAG_VIEW, "minLastSequence (%s) == dbMaxSequence (%s), nothing to do", minLastSequence, dbMaxSequence);
+                result.setCode(Status.NOT_MODIFIED);
+                return;
+            }
+
+            // Now scan every revision added since the last time the views were indexed, a chunk
+            // of documents at a time:
+            long afterDocID = 0;
+            while (true) {
+                List<IndexRow> rows = new ArrayList<IndexRow>();
+                long lastDocID = readChunk(minLastSequence, afterDocID, rows);
+                if (lastDocID < 0) {
+                    break;
+                }
+                if (minLastSequence > 0) {
+                    resolvePreviousWinners(minLastSequence, afterDocID, lastDocID, rows);
+                }
+                afterDocID = lastDocID;
+
+                for (IndexRow row : rows) {
+                    if (row.deleted) {
+                        continue;
+                    }
+                    byte[] json = row.json;
+                    if (json == null) {
+                        // A previous winner, or a body the cursor window couldn't hold
+                        Object[] selectArgs = { row.sequence };
+                        json = Utils.byteArrayResultForQuery(database.getDatabase(), "SELECT json FROM revs WHERE sequence=?", selectArgs);
+                    }
+
+                    // Get the document properties, to pass to the map function:
+                    EnumSet<TDContentOptions> contentOptions = EnumSet.noneOf(Database.TDContentOptions.class);
+                    if (row.noAttachments)
+                        contentOptions.add(TDContentOptions.TDNoAttachments);
+                    RevisionInternal rev = new RevisionInternal(row.docId, row.revId, false);
+                    rev.setSequence(row.sequence);
+                    Map<String, Object> extra = database.extraPropertiesForRevision(rev, contentOptions);
+
+                    MapJob job = new MapJob(row.sequence, json, extra);
+                    if (mapExecutor == null) {
+                        writeRows(job.call());
+                    } else {
+                        pending.add(mapExecutor.submit(job));
+                        if (pending.size() >= maxPending) {
+                            writeRows(finish(pending.removeFirst()));
+                        }
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeRows(finish(pending.removeFirst()));
+            }
+            flushRows();
+
+            // Finally, record the last revision sequence number that was
+            // indexed:
+            for (int i = 0; i < views.size(); i++) {
+                ContentValues updateValues = new ContentValues();
+                updateValues.put("lastSequence", dbMaxSequence);
+                updateValues.put("total_docs", views.get(i).countTotalRows());
+                String[] whereArgs = { Integer.toString(viewIds[i]) };
+                database.getDatabase().update("views", updateValues, "view_id=?", whereArgs);
+            }
+
+            // FIXME actually count number added :)
+            Log.v(Log.TAG_VIEW, "Finished re-indexing views: %s " + " up to sequence %s", viewNames(), dbMaxSequence);
+            result.setCode(Status.OK);
+        }
+        catch (SQLException e) {
+            throw new CouchbaseLiteException(e, new Status(Status.DB_ERROR));
+        }
+        catch (CouchbaseLiteException e) {
+            throw e;
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            // only MapJob.call() declares it, and it doesn't throw checked exceptions
+            throw new RuntimeException(e);
+        }
+        finally {
+            // Don't end the transaction with map functions still running. Cancelling wouldn't
+            // do: get() on a cancelled job returns without waiting for it to stop.
+            abandoned = true;
+            for (Future<MapJob> future : pending) {
+                awaitQuietly(future);
+            }
+            if (!result.isSuccessful()) {
+                Log.w(Log.TAG_VIEW, "Failed to rebuild views %s.  Result code: %d", viewNames(), result.getCode());
+            }
+            if(database != null) {
+                database.endTransaction(result.isSuccessful());
+            }
+        }
+    }
+
+    /**
+     * Waits for a map job run by the executor, passing on whatever the map function threw.
+     */
+    private MapJob finish(Future<MapJob> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits for a map job whose result is no longer wanted, ignoring whatever it threw.
+     */
+    private static void awaitQuietly(Future<MapJob> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    return;
+                } catch (CancellationException e) {
+                    return;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private List<String> viewNames() {
+        List<String> names = new ArrayList<String>(views.size());
+        for (View view : views) {
+            names.add(view.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Reads the current revisions, with their bodies, of the documents after afterDocID that
+     * changed since minLastSequence, up to READ_CHUNK_SIZE rows. Adds each document's winning
+     * revision to rows (design documents excepted) and returns the last doc_id read, or -1 if
+     * there were no more.
+     */
+    private long readChunk(long minLastSequence, long afterDocID, List<IndexRow> rows) {
+        // NOTE: With a large result, Android's SQLiteDatabase returns null columns once the
+        //       cursor window fills up, which used to lose index data; so the bodies were read
+        //       with a query per document. Reading a limited number of rows per query keeps the
+        //       window small instead. A body that still comes back null is read on its own.
+        StringBuffer sql = new StringBuffer("SELECT revs.doc_id, sequence, docid, revid, no_attachments, deleted, json FROM revs, docs WHERE sequence>? AND current!=0 ");
+        if (minLastSequence == 0) {
+            sql.append("AND deleted=0 ");
+        }
+        sql.append("AND revs.doc_id>? AND revs.doc_id = docs.doc_id ORDER BY revs.doc_id, revid DESC LIMIT ?");
+        Object[] selectArgs = { minLastSequence, afterDocID, READ_CHUNK_SIZE };
+
+        long lastDocID = -1;
+        Cursor cursor = null;
+        try {
+            cursor = database.getDatabase().rawQuery(sql.toString(), selectArgs);
+            while (cursor.moveToNext()) {
+                // NOTE: skip row if 1st column is null
+                // https://github.com/couchbase/couchbase-lite-java-core/issues/497
+                if (cursor.isNull(0)) {
+                    continue;
+                }
+                long docID = cursor.getLong(0);
+                if (docID == lastDocID) {
+                    continue;  // a losing conflict
+                }
+                lastDocID = docID;
+                String docId = cursor.getString(2);
+                if (docId.startsWith("_design/")) {  // design docs don't get indexed!
+                    continue;
+                }
+                IndexRow row = new IndexRow(docID, docId);
+                row.sequence = cursor.getLong(1);
+                row.revId = cursor.getString(3);
+                row.noAttachments = cursor.getInt(4) > 0;
+                row.deleted = cursor.getInt(5) > 0;
+                row.json = cursor.getBlob(6);
+                rows.add(row);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return lastDocID;
+    }
+
+    /**
+     * Finds the revisions of a chunk's documents that won at or before minLastSequence, all at
+     * once through the temp.index_docs table, and removes their emitted rows. Where one of them
+     * still wins the conflict it replaces the row read from the chunk, so it gets mapped again.
+     */
+    private void resolvePreviousWinners(long minLastSequence, long afterDocID, long lastDocID, List<IndexRow> rows) {
+        SQLiteStorageEngine storage = database.getDatabase();
+        storage.execSQL("CREATE TEMP TABLE IF NOT EXISTS index_docs (doc_id INTEGER PRIMARY KEY, old_sequence INTEGER)");
+        storage.execSQL("DELETE FROM temp.index_docs");
+        storage.execSQL("INSERT INTO temp.index_docs (doc_id) SELECT DISTINCT doc_id FROM revs " +
+                "WHERE sequence>? AND current!=0 AND doc_id>? AND doc_id<=?",
+                new Object[]{minLastSequence, afterDocID, lastDocID});
+        storage.execSQL("UPDATE temp.index_docs SET old_sequence=(SELECT sequence FROM revs " +
+                "WHERE revs.doc_id=index_docs.doc_id AND sequence<=? AND current!=0 AND deleted=0 " +
+                "ORDER BY revid DESC LIMIT 1)", new Object[]{minLastSequence});
+
+        // These are the revisions that used to be the 'winners'. Remove their emitted rows:
+        for (int viewId : viewIds) {
+            storage.execSQL("DELETE FROM maps WHERE view_id=? AND sequence IN " +
+                    "(SELECT old_sequence FROM temp.index_docs)", new Object[]{viewId});
+        }
+
+        Map<Long, IndexRow> rowsByDocID = new HashMap<Long, IndexRow>();
+        for (IndexRow row : rows) {
+            rowsByDocID.put(row.docID, row);
+        }
+        Cursor cursor = null;
+        try {
+            cursor = storage.rawQuery("SELECT i.doc_id, revid, sequence FROM temp.index_docs i, revs " +
+                    "WHERE revs.sequence=i.old_sequence", (String[]) null);
+            while (cursor.moveToNext()) {
+                IndexRow row = rowsByDocID.get(cursor.getLong(0));
+                if (row == null) {
+                    continue;
+                }
+                String oldRevId = cursor.getString(1);
+                if (row.deleted || RevisionInternal.CBLCompareRevIDs(oldRevId, row.revId) > 0) {
+                    // It still 'wins' the conflict, so it's the one that
+                    // should be mapped [again], not the current revision!
+                    row.revId = oldRevId;
+                    row.sequence = cursor.getLong(2);
+                    row.deleted = false;
+                    row.json = null;
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private void writeRows(MapJob job) {
+        for (int i = 0; i < viewIds.length; i++) {
+            for (Object[] row : job.emitted.get(i)) {
+                rowBuffer.add(new Object[]{viewIds[i], job.sequence, row[0], row[1], row[2]});
+                if (rowBuffer.size() >= MAP_ROWS_PER_INSERT) {
+                    flushRows();
+                }
+            }
+        }
+    }
+
+    /**
+     * Inserts the buffered map rows: a full buffer with one multi-row INSERT, otherwise (or if
+     * that fails) a row at a time.
+     */
+    private void flushRows() {
+        if (rowBuffer.isEmpty()) {
+            return;
+        }
+        if (rowBuffer.size() == MAP_ROWS_PER_INSERT) {
+            SQLiteStatement statement = database.getCompiledStatement(INSERT_MAP_ROWS_SQL);
+            try {
+                try {
+                    for (int i = 0; i < MAP_ROWS_PER_INSERT; i++) {
+                        bindRow(statement, i * 5, rowBuffer.get(i));
+                    }
+                    statement.execute();
+                    rowBuffer.clear();
+                    return;
+                } catch (SQLException e) {
+                    Log.w(Log.TAG_VIEW, "Error emitting %d rows, retrying one at a time", e, MAP_ROWS_PER_INSERT);
+                }
+            } finally {
+                database.releaseStatement(statement);
+            }
+        }
+        SQLiteStatement statement = database.getCompiledStatement(INSERT_MAP_ROW_SQL);
+        try {
+            for (Object[] row : rowBuffer) {
+                try {
+                    bindRow(statement, 0, row);
+                    statement.execute();
+                } catch (SQLException e) {
+                    Log.e(Log.TAG_VIEW, "Error emitting", e);
+                }
+            }
+        } finally {
+            database.releaseStatement(statement);
+        }
+        rowBuffer.clear();
+    }
+
+    private static void bindRow(SQLiteStatement statement, int offset, Object[] row) {
+        statement.bindLong(offset + 1, (Integer) row[0]);
+        statement.bindLong(offset + 2, (Long) row[1]);
+        statement.bindString(offset + 3, (String) row[2]);
+        if (row[3] != null) {
+            statement.bindString(offset + 4, (String) row[3]);
+        } else {
+            statement.bindNull(offset + 4);
+        }
+        statement.bindBlob(offset + 5, (byte[]) row[4]);
+    }
+
+    /**
+     * An INSERT of the given number of map rows. It's written as a compound SELECT rather than
+     * a multi-row VALUES list, which older SQLite versions (before 3.7.11) don't support.
+     */
+    private static String insertMapRowsSQL(int rows) {
+        StringBuilder sql = new StringBuilder("INSERT INTO maps (view_id, sequence, key, value, collation_key)");
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? " SELECT ?,?,?,?,?" : " UNION ALL SELECT ?,?,?,?,?");
+        }
+        return sql.toString();
+    }
+}
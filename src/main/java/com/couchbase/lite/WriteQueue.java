@@ -0,0 +1,307 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the writes submitted through Database's async write API (putDocumentAsync() etc.) on a
+ * dedicated writer thread, so the submitting threads don't wait on SQLite.
+ *
+ * The writer takes the first queued write, then collects more for up to maxDelayMs or until it
+ * has maxBatchSize, and commits them all in one transaction. The document writes of a batch go
+ * through Database.putDocuments(), which looks up all their documents at once; local document
+ * writes each run in their own nested transaction. A write that fails is rolled back on its own.
+ *
+ * Each write's Future completes, and its listener is called on the writer thread, once the
+ * batch has been committed (or has failed).
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+class WriteQueue {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_DELAY_MS = 5;
+
+    private final Database database;
+    private final int maxBatchSize;
+    private final int maxDelayMs;
+
+    private final BlockingQueue<Write<?>> queue = new LinkedBlockingQueue<Write<?>>();
+    private Thread writer;
+    private boolean closed = false;
+
+    // Queued by close() to stop the writer once everything before it is written
+    private static final Write<Object> SHUTDOWN = new Write<Object>(null, null, null, false, null);
+
+    /**
+     * A queued write: a document put or delete (properties), or a local document put or delete
+     * (localDocID).
+     */
+    private static class Write<T> {
+        final Map<String, Object> properties;
+        final String localDocID;
+        final Map<String, Object> localProperties;
+        final boolean deleteLocal;
+        final Database.WriteCompleteListener<T> listener;
+        final FutureTask<T> future;
+        T result;
+        Throwable error;
+
+        Write(Map<String, Object> properties, String localDocID, Map<String, Object> localProperties,
+              boolean deleteLocal, Database.WriteCompleteListener<T> listener) {
+            this.properties = properties;
+            this.localDocID = localDocID;
+            this.localProperties = localProperties;
+            this.deleteLocal = deleteLocal;
+            this.listener = listener;
+            this.future = new FutureTask<T>(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    if (error instanceof Exception) {
+                        throw (Exception) error;
+                    } else if (error != null) {
+                        throw new RuntimeException(error);
+                    }
+                    return result;
+                }
+            });
+        }
+
+        boolean isLocal() {
+            return localDocID != null;
+        }
+    }
+
+    WriteQueue(Database database) {
+        this(database, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MS);
+    }
+
+    WriteQueue(Database database, int maxBatchSize, int maxDelayMs) {
+        this.database = database;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    Future<SavedRevision> putDocument(Map<String, Object> properties, Database.WriteCompleteListener<SavedRevision> listener) {
+        return submit(new Write<SavedRevision>(properties, null, null, false, listener));
+    }
+
+    Future<Boolean> putLocalDocument(String id, Map<String, Object> properties, Database.WriteCompleteListener<Boolean> listener) {
+        return submit(new Write<Boolean>(null, id, properties, properties == null, listener));
+    }
+
+    private synchronized <T> Future<T> submit(Write<T> write) {
+        if (closed) {
+            write.error = new CouchbaseLiteException("The database has been closed", Status.INTERNAL_SERVER_ERROR);
+            complete(write);
+            return write.future;
+        }
+        if (writer == null) {
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWriter();
+                }
+            }, "CBLWriter-" + database.getName());
+            writer.setDaemon(true);
+            writer.start();
+        }
+        queue.add(write);
+        return write.future;
+    }
+
+    /**
+     * Writes everything already queued, then stops the writer thread. Writes submitted after
+     * this fail.
+     */
+    void close() {
+        Thread writerToJoin;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writerToJoin = writer;
+            queue.add(SHUTDOWN);
+        }
+        if (writerToJoin != null && writerToJoin != Thread.currentThread()) {
+            try {
+                writerToJoin.join();
+            } catch (InterruptedException e) {
+                Log.w(Database.TAG, "Interrupted waiting for queued writes to finish");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void runWriter() {
+        List<Write<?>> batch = new ArrayList<Write<?>>();
+        boolean shutdown = false;
+        while (!shutdown) {
+            try {
+                Write<?> first = queue.take();
+                if (first == SHUTDOWN) {
+                    break;
+                }
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + maxDelayMs;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Write<?> next = (remaining > 0) ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    } else if (next == SHUTDOWN) {
+                        shutdown = true;
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Log.w(Database.TAG, "%s: writer interrupted", this);
+            }
+            if (!batch.isEmpty()) {
+                commitBatch(batch);
+                batch.clear();
+            }
+        }
+        Log.v(Database.TAG, "%s: writer stopped", this);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void commitBatch(List<Write<?>> batch) {
+        List<Write<SavedRevision>> documentWrites = new ArrayList<Write<SavedRevision>>();
+        List<Write<Boolean>> localWrites = new ArrayList<Write<Boolean>>();
+        for (Write<?> write : batch) {
+            if (write.future.isCancelled()) {
+                continue;
+            }
+            if (write.isLocal()) {
+                localWrites.add((Write<Boolean>) write);
+            } else {
+                documentWrites.add((Write<SavedRevision>) write);
+            }
+        }
+        Log.v(Database.TAG, "%s: writing %d documents and %d local documents", this,
+                documentWrites.size(), localWrites.size());
+
+        boolean committed = false;
+        if (database.beginTransaction()) {
+            try {
+                writeDocuments(documentWrites);
+                for (Write<Boolean> write : localWrites) {
+                    writeLocalDocument(write);
+                }
+                committed = true;
+            } catch (Exception e) {
+                Log.e(Database.TAG, "Error writing queued batch", e);
+            } finally {
+                try {
+                    committed = database.endTransaction(committed) && committed;
+                } catch (SQLException e) {
+                    Log.e(Database.TAG, "Error committing queued batch", e);
+                    committed = false;
+                }
+            }
+        }
+
+        for (Write<?> write : batch) {
+            if (!committed && write.error == null) {
+                write.result = null;
+                write.error = new CouchbaseLiteException("Unable to commit write", Status.DB_ERROR);
+            }
+            complete(write);
+        }
+    }
+
+    private void writeDocuments(List<Write<SavedRevision>> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        List<Map<String, Object>> documents = new ArrayList<Map<String, Object>>(writes.size());
+        for (Write<SavedRevision> write : writes) {
+            documents.add(write.properties);
+        }
+        List<Status> statuses = new ArrayList<Status>(writes.size());
+        List<SavedRevision> saved;
+        try {
+            saved = database.putDocuments(documents, statuses);
+        } catch (CouchbaseLiteException e) {
+            if (writes.size() == 1) {
+                writes.get(0).error = e;
+                return;
+            }
+            // Something failed before any document was saved (e.g. installing an attachment):
+            // save them one by one so the failure only affects its own document.
+            for (Write<SavedRevision> write : writes) {
+                List<Write<SavedRevision>> single = new ArrayList<Write<SavedRevision>>(1);
+                single.add(write);
+                writeDocuments(single);
+            }
+            return;
+        }
+        for (int i = 0; i < writes.size(); i++) {
+            Write<SavedRevision> write = writes.get(i);
+            write.result = saved.get(i);
+            if (write.result == null) {
+                write.error = new CouchbaseLiteException(statuses.get(i));
+            }
+        }
+    }
+
+    private void writeLocalDocument(Write<Boolean> write) {
+        boolean success = false;
+        if (!database.beginTransaction()) {
+            write.error = new CouchbaseLiteException(Status.DB_ERROR);
+            return;
+        }
+        try {
+            if (write.deleteLocal) {
+                write.result = database.deleteLocalDocument(write.localDocID);
+            } else {
+                write.result = database.putLocalDocument(write.localDocID, write.localProperties);
+            }
+            success = true;
+        } catch (CouchbaseLiteException e) {
+            write.error = e;
+        } finally {
+            database.endTransaction(success);
+        }
+    }
+
+    private <T> void complete(Write<T> write) {
+        write.future.run();  // no-op if cancelled
+        if (write.listener != null && !write.future.isCancelled()) {
+            try {
+                write.listener.completed(write.result, write.error);
+            } catch (Throwable t) {
+                Log.e(Database.TAG, "Exception in write completion listener", t);
+            }
+        }
+    }
+}
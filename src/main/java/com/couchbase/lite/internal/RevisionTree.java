@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.internal;
+
+import java.util.Arrays;
+
+/**
+ * A compact in-memory copy of one document's revision tree: the revID, sequence, parent
+ * sequence and current/deleted flags of every row in the revs table for the document, without
+ * the bodies. Kept in parallel arrays, with an open-addressing hash index from revID to
+ * position, so a document with a long history costs a handful of objects rather than one
+ * RevisionInternal plus a map entry per revision.
+ *
+ * Not thread-safe; the Database only touches it inside a transaction.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+public class RevisionTree {
+
+    private static final byte FLAG_CURRENT = 1;
+    private static final byte FLAG_DELETED = 2;
+
+    private final String docId;
+    private final long docNumericID;
+
+    private int count;
+    private String[] revIds;
+    private long[] sequences;
+    private long[] parents;
+    private byte[] flags;
+
+    // revID hash index: position + 1, or 0 for an empty slot. Twice the array capacity.
+    private int[] index;
+
+    public RevisionTree(String docId, long docNumericID) {
+        this(docId, docNumericID, 8);
+    }
+
+    public RevisionTree(String docId, long docNumericID, int initialCapacity) {
+        this.docId = docId;
+        this.docNumericID = docNumericID;
+        int capacity = Math.max(initialCapacity, 4);
+        revIds = new String[capacity];
+        sequences = new long[capacity];
+        parents = new long[capacity];
+        flags = new byte[capacity];
+        index = new int[indexSizeFor(capacity)];
+    }
+
+    public String getDocId() {
+        return docId;
+    }
+
+    public long getDocNumericID() {
+        return docNumericID;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Adds a revision (a row of the revs table). parentSequence is 0 if it has no parent.
+     */
+    public void add(String revId, long sequence, long parentSequence, boolean current, boolean deleted) {
+        if (count == revIds.length) {
+            grow();
+        }
+        int pos = count++;
+        revIds[pos] = revId;
+        sequences[pos] = sequence;
+        parents[pos] = parentSequence;
+        flags[pos] = (byte) ((current ? FLAG_CURRENT : 0) | (deleted ? FLAG_DELETED : 0));
+        addToIndex(pos);
+    }
+
+    /**
+     * Returns the position of the revision with the given ID, or -1.
+     */
+    public int indexOf(String revId) {
+        int mask = index.length - 1;
+        for (int slot = revId.hashCode() & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            int pos = index[slot] - 1;
+            if (revIds[pos].equals(revId)) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the sequence of the revision with the given ID, or 0 if it isn't in the tree.
+     */
+    public long getSequence(String revId) {
+        int pos = indexOf(revId);
+        return pos >= 0 ? sequences[pos] : 0;
+    }
+
+    public String getRevId(int pos) {
+        return revIds[pos];
+    }
+
+    public long getSequenceAt(int pos) {
+        return sequences[pos];
+    }
+
+    public long getParentSequenceAt(int pos) {
+        return parents[pos];
+    }
+
+    public boolean isCurrent(int pos) {
+        return (flags[pos] & FLAG_CURRENT) != 0;
+    }
+
+    public boolean isDeleted(int pos) {
+        return (flags[pos] & FLAG_DELETED) != 0;
+    }
+
+    /**
+     * Records that the revision with the given sequence is no longer a leaf.
+     * Returns false if it wasn't current (or isn't in the tree).
+     */
+    public boolean markNotCurrent(long sequence) {
+        for (int pos = count - 1; pos >= 0; pos--) {
+            if (sequences[pos] == sequence) {
+                boolean wasCurrent = isCurrent(pos);
+                flags[pos] &= ~FLAG_CURRENT;
+                return wasCurrent;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a RevisionInternal (no body) for the revision at the given position.
+     */
+    public RevisionInternal getRevision(int pos) {
+        RevisionInternal rev = new RevisionInternal(docId, revIds[pos], isDeleted(pos));
+        rev.setSequence(sequences[pos]);
+        return rev;
+    }
+
+    /**
+     * Same result as Database.winningRevIDOfDoc(): the highest current non-deleted revision,
+     * else the highest current deleted one; null if there are no current revisions.
+     * outIsDeleted / outIsConflict (optional, may be null) are one-element arrays.
+     */
+    public String winningRevId(boolean[] outIsDeleted, boolean[] outIsConflict) {
+        int winner = -1;
+        int liveLeaves = 0;
+        for (int pos = 0; pos < count; pos++) {
+            if (!isCurrent(pos)) {
+                continue;
+            }
+            if (!isDeleted(pos)) {
+                liveLeaves++;
+            }
+            if (winner < 0
+                    || (isDeleted(winner) && !isDeleted(pos))
+                    || (isDeleted(winner) == isDeleted(pos)
+                        && RevisionInternal.CBLCompareRevIDs(revIds[pos], revIds[winner]) > 0)) {
+                winner = pos;
+            }
+        }
+        if (outIsDeleted != null) {
+            outIsDeleted[0] = winner >= 0 && isDeleted(winner);
+        }
+        if (outIsConflict != null) {
+            outIsConflict[0] = liveLeaves > 1;
+        }
+        return winner >= 0 ? revIds[winner] : null;
+    }
+
+    private void grow() {
+        int capacity = revIds.length * 2;
+        revIds = Arrays.copyOf(revIds, capacity);
+        sequences = Arrays.copyOf(sequences, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        index = new int[indexSizeFor(capacity)];
+        for (int pos = 0; pos < count; pos++) {
+            addToIndex(pos);
+        }
+    }
+
+    private void addToIndex(int pos) {
+        int mask = index.length - 1;
+        int slot = revIds[pos].hashCode() & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = pos + 1;
+    }
+
+    private static int indexSizeFor(int capacity) {
+        // power of two, at least twice the capacity so probes stay short
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+}
@@ -283,10 +283,25 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
         ChangesOptions options = new ChangesOptions();
         options.setIncludeConflicts(true);
         Log.d(Log.TAG_SYNC, "%s: Getting changes since %s", this, lastSequence);
-        RevisionList changes = db.changesSince(lastSequenceLong, options, filter, filterParams);
-        if (changes.size() > 0) {
-            Log.d(Log.TAG_SYNC, "%s: Queuing %d changes since %s", this, changes.size(), lastSequence);
-            batcher.queueObjects(changes);
+        // Hand the changes to the batcher in chunks as they're read, rather than collecting
+        // them all first:
+        final List<RevisionInternal> chunk = new ArrayList<RevisionInternal>(INBOX_CAPACITY);
+        int numChanges = db.changesSince(lastSequenceLong, options, filter, filterParams, new Database.ChangesCallback() {
+            @Override
+            public boolean onChange(RevisionInternal rev) {
+                chunk.add(rev);
+                if (chunk.size() >= INBOX_CAPACITY) {
+                    batcher.queueObjects(new ArrayList<RevisionInternal>(chunk));
+                    chunk.clear();
+                }
+                return true;
+            }
+        });
+        if (!chunk.isEmpty()) {
+            batcher.queueObjects(chunk);
+        }
+        if (numChanges > 0) {
+            Log.d(Log.TAG_SYNC, "%s: Queued %d changes since %s", this, numChanges, lastSequence);
             batcher.flush();
         } else {
             Log.d(Log.TAG_SYNC, "%s: No changes since %s", this, lastSequence);
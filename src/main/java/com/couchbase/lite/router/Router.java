@@ -51,6 +51,8 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
     Map<String, Object> changesFilterParams = null;
     private boolean longpoll = false;
     private boolean waiting = false;
+    private boolean dbRetained = false;
+    private boolean responseWritten = false;  // a handler returning status 0 wrote it all itself
 
     public static String getVersionString() {
         return Version.getVersion();
@@ -218,6 +220,9 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
             if (getJSONQuery("endkey_docid") != null) {
                 options.setEndKeyDocId(getJSONQuery("endkey_docid").toString());
             }
+            if (getJSONQuery("startafter_docid") != null) {
+                options.setStartAfterDocId(getJSONQuery("startafter_docid").toString());
+            }
 
         }
 
@@ -239,7 +244,7 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
         if (!db.exists()) {
             return new Status(Status.NOT_FOUND);
         }
-        if (!db.open()) {
+        if (!manager.openDatabase(db)) {
             return new Status(Status.INTERNAL_SERVER_ERROR);
         }
         return new Status(Status.OK);
@@ -334,6 +339,10 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
                         sendResponse();
                         return;
                     }
+                    // Keep the database from being closed by the open database pool while
+                    // this request uses it
+                    manager.retainDatabase(db);
+                    dbRetained = true;
 
                 }
             }
@@ -354,6 +363,7 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
                     Log.e(Log.TAG_ROUTER, "Error closing empty output stream");
                 }
                 sendResponse();
+                releaseDB();
                 return;
             }
             String name = path.get(1);
@@ -367,6 +377,7 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
                         Log.e(Log.TAG_ROUTER, "Error closing empty output stream");
                     }
                     sendResponse();
+                    releaseDB();
                     return;
                 }
                 docID = name;
@@ -380,6 +391,7 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
                         Log.e(Log.TAG_ROUTER, "Error closing empty output stream");
                     }
                     sendResponse();
+                    releaseDB();
                     return;
                 }
                 docID = name + "/" + path.get(2);
@@ -501,7 +513,7 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
 
             setResponse();
             sendResponse();
-        } else {
+        } else if (!responseWritten) {
             // NOTE code == 0
             waiting = true;
         }
@@ -510,6 +522,8 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
             if (db != null) {
                 db.addDatabaseListener(this);
             }
+        } else {
+            releaseDB();
         }
     }
 
@@ -536,6 +550,14 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
             db.removeChangeListener(this);
             db.removeDatabaseListener(this);
         }
+        releaseDB();
+    }
+
+    private void releaseDB() {
+        if (dbRetained) {
+            dbRetained = false;
+            manager.releaseDatabase(db);
+        }
     }
 
     public Status do_UNKNOWN(Database db, String docID, String attachmentName) {
@@ -965,7 +987,7 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
         if (db.exists()) {
             return new Status(Status.PRECONDITION_FAILED);
         }
-        if (!db.open()) {
+        if (!manager.openDatabase(db)) {
             return new Status(Status.INTERNAL_SERVER_ERROR);
         }
         setResponseLocation(connection.getURL());
@@ -1012,6 +1034,9 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
         if (!getQueryOptions(options)) {
             return new Status(Status.BAD_REQUEST);
         }
+        if (options.getKeys() == null) {
+            return sendAllDocsStreaming(options);
+        }
         Map<String, Object> result = db.getAllDocs(options);
         convertCBLQueryRowsToMaps(result);
         if (result == null) {
@@ -1021,6 +1046,52 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
         return new Status(Status.OK);
     }
 
+    /**
+     * Writes the _all_docs response a row at a time as the rows are read from the database,
+     * so the whole result is never held in memory.
+     */
+    private Status sendAllDocsStreaming(QueryOptions options) throws CouchbaseLiteException {
+        long updateSeq = options.isUpdateSeq() ? db.getLastSequenceNumber() : 0;
+        AllDocsEnumerator rows = db.getAllDocsEnumerator(options);
+        try {
+            connection.setChunked(true);
+            connection.getResHeader().add("Content-Type", "application/json");
+            sendResponseHeaders(new Status(Status.OK));
+            connection.setResponseCode(Status.OK);
+            sendResponse();
+
+            OutputStream os = connection.getResponseOutputStream();
+            try {
+                os.write("{\"rows\":[".getBytes());
+                int count = 0;
+                for (QueryRow row : rows) {
+                    if (count++ > 0) {
+                        os.write(',');
+                    }
+                    os.write('\n');
+                    os.write(Manager.getObjectMapper().writeValueAsBytes(row.asJSONDictionary()));
+                }
+                StringBuilder tail = new StringBuilder();
+                tail.append("\n],\"total_rows\":").append(count);
+                tail.append(",\"offset\":").append(options.getSkip());
+                if (updateSeq != 0) {
+                    tail.append(",\"update_seq\":").append(updateSeq);
+                }
+                tail.append("}");
+                os.write(tail.toString().getBytes());
+            } finally {
+                os.close();
+            }
+        } catch (IOException e) {
+            Log.e(Log.TAG_ROUTER, "IOException writing _all_docs response", e);
+        } finally {
+            rows.close();
+        }
+        // Response has already been sent, and finished: there's nothing to wait for
+        responseWritten = true;
+        return new Status(0);
+    }
+
     public Status do_POST_Document_all_docs(Database _db, String _docID, String _attachmentName) throws CouchbaseLiteException {
         QueryOptions options = new QueryOptions();
         if (!getQueryOptions(options)) {
@@ -1483,26 +1554,39 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
             Log.v(Log.TAG_ROUTER, "Filter params=" + changesFilterParams);
         }
 
-        RevisionList changes = db.changesSince(since, options, changesFilter, changesFilterParams);
-
-        if (changes == null) {
-            return new Status(Status.INTERNAL_SERVER_ERROR);
-        }
-
         String feed = getQuery("feed");
         longpoll = "longpoll".equals(feed);
         boolean continuous = !longpoll && "continuous".equals(feed);
 
-        if (continuous || (longpoll && changes.size() == 0)) {
+        if (continuous) {
+            // Send the existing changes as they're read, then keep listening for new ones
             connection.setChunked(true);
             sendResponseHeaders(new Status(Status.OK));
             connection.setResponseCode(Status.OK);
             sendResponse();
-            if (continuous) {
-                for (RevisionInternal rev : changes) {
+            db.changesSince(since, options, changesFilter, changesFilterParams, new Database.ChangesCallback() {
+                @Override
+                public boolean onChange(RevisionInternal rev) {
                     sendContinuousChange(rev);
+                    return true;
                 }
-            }
+            });
+            db.addChangeListener(this);
+            // Don't close connection; more data to come
+            return new Status(0);
+        }
+
+        RevisionList changes = db.changesSince(since, options, changesFilter, changesFilterParams);
+
+        if (changes == null) {
+            return new Status(Status.INTERNAL_SERVER_ERROR);
+        }
+
+        if (longpoll && changes.size() == 0) {
+            connection.setChunked(true);
+            sendResponseHeaders(new Status(Status.OK));
+            connection.setResponseCode(Status.OK);
+            sendResponse();
             db.addChangeListener(this);
             // Don't close connection; more data to come
             return new Status(0);
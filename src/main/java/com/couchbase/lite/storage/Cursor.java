@@ -17,12 +17,22 @@
 package com.couchbase.lite.storage;
 
 public interface Cursor {
+    /** Column value types returned by getType(); same values as SQLite's fundamental datatypes. */
+    int FIELD_TYPE_NULL = 0;
+    int FIELD_TYPE_INTEGER = 1;
+    int FIELD_TYPE_FLOAT = 2;
+    int FIELD_TYPE_STRING = 3;
+    int FIELD_TYPE_BLOB = 4;
+
     boolean moveToNext();
     boolean isAfterLast();
     String getString(int columnIndex);
     int getInt(int columnIndex);
     long getLong(int columnIndex);
+    double getDouble(int columnIndex);
     byte[] getBlob(int columnIndex);
+    int getType(int columnIndex);
+    int getColumnCount();
     void close();
     boolean isNull(int columnIndex);
 }
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A small pool of extra connections to a database file, used only for reading. With the
+ * database in WAL mode these see the last committed state and are not blocked by a write
+ * transaction running on the main connection.
+ *
+ * Connections are opened lazily, up to the pool size. acquire() never blocks: if every
+ * connection is in use it returns null and the caller should read through its main connection
+ * instead (this also makes nested acquires from the same thread safe).
+ */
+public class SQLiteConnectionPool {
+
+    public static final String TAG = Log.TAG_DATABASE;
+
+    private final SQLiteStorageEngineFactory factory;
+    private final String path;
+    private final int maxConnections;
+
+    private final LinkedList<SQLiteStorageEngine> idle = new LinkedList<SQLiteStorageEngine>();
+    private final List<SQLiteStorageEngine> all = new ArrayList<SQLiteStorageEngine>();
+    private boolean closed = false;
+
+    public SQLiteConnectionPool(SQLiteStorageEngineFactory factory, String path, int maxConnections) {
+        this.factory = factory;
+        this.path = path;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Returns an idle read connection, opening a new one if the pool isn't full yet,
+     * or null if none is available.
+     */
+    public synchronized SQLiteStorageEngine acquire() {
+        if (closed) {
+            return null;
+        }
+        if (!idle.isEmpty()) {
+            return idle.removeFirst();
+        }
+        if (all.size() >= maxConnections) {
+            return null;
+        }
+        SQLiteStorageEngine connection = factory.createStorageEngine();
+        if (connection == null || !connection.open(path)) {
+            Log.w(TAG, "Unable to open read connection to %s", path);
+            return null;
+        }
+        try {
+            // Best effort; older SQLite versions silently ignore unknown pragmas.
+            connection.execSQL("PRAGMA query_only = ON");
+        } catch (SQLException e) {
+            Log.w(TAG, "Unable to make read connection query-only", e);
+        }
+        all.add(connection);
+        return connection;
+    }
+
+    /**
+     * Returns a connection obtained from acquire() to the pool.
+     */
+    public synchronized void release(SQLiteStorageEngine connection) {
+        if (connection == null) {
+            return;
+        }
+        if (closed) {
+            connection.close();
+            return;
+        }
+        idle.addFirst(connection);
+    }
+
+    /**
+     * Closes all idle connections. Connections still checked out are closed when released.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (SQLiteStorageEngine connection : idle) {
+            connection.close();
+        }
+        idle.clear();
+        all.clear();
+    }
+}
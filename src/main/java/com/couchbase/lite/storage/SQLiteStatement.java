@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+/**
+ * A pre-compiled SQL statement that can be bound and executed repeatedly without being
+ * re-parsed by SQLite. Bind indexes are 1-based, as in SQLite.
+ *
+ * Statements are not thread-safe; don't share one between threads.
+ */
+public interface SQLiteStatement {
+    void bindNull(int index);
+    void bindLong(int index, long value);
+    void bindDouble(int index, double value);
+    void bindString(int index, String value);
+    void bindBlob(int index, byte[] value);
+    void clearBindings();
+
+    /**
+     * Executes a statement that returns no rows (e.g. CREATE, DROP).
+     */
+    void execute() throws SQLException;
+
+    /**
+     * Executes an INSERT and returns the row ID of the inserted row, or -1 on failure.
+     */
+    long executeInsert() throws SQLException;
+
+    /**
+     * Executes a statement whose row count matters (UPDATE, DELETE, INSERT ... SELECT)
+     * and returns the number of rows affected.
+     */
+    int executeUpdateDelete() throws SQLException;
+
+    /**
+     * Executes a query returning a single value and returns it, or 0 if the query
+     * returned no rows.
+     */
+    long simpleQueryForLong() throws SQLException;
+
+    /**
+     * Executes a query returning a single value and returns it, or null if the query
+     * returned no rows.
+     */
+    String simpleQueryForString() throws SQLException;
+
+    void close();
+}
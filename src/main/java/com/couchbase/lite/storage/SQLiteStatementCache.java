@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+import com.couchbase.lite.util.LruCache;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * An LRU cache of compiled statements, keyed by SQL text. A statement is compiled the first
+ * time its SQL is requested and closed when it is evicted or the cache is cleared.
+ *
+ * Statements are handed out with acquire() and given back with release(). One that is evicted
+ * while acquired isn't closed until its last release(), so eviction never closes a statement
+ * out from under its user.
+ *
+ * Only use this for SQL with a fixed text (all variable parts bound as arguments), otherwise
+ * the cache just churns.
+ */
+public class SQLiteStatementCache extends LruCache<String, SQLiteStatement> {
+
+    public static final int DEFAULT_MAX_STATEMENTS = 64;
+
+    private SQLiteStorageEngine storageEngine;
+
+    // Statements acquired and not yet released, with their acquire counts
+    private final Map<SQLiteStatement, Integer> useCounts = new IdentityHashMap<SQLiteStatement, Integer>();
+
+    // Acquired statements that were evicted meanwhile; closed on their last release
+    private final Map<SQLiteStatement, Boolean> evictedInUse = new IdentityHashMap<SQLiteStatement, Boolean>();
+
+    public SQLiteStatementCache(SQLiteStorageEngine storageEngine) {
+        this(storageEngine, DEFAULT_MAX_STATEMENTS);
+    }
+
+    public SQLiteStatementCache(SQLiteStorageEngine storageEngine, int maxStatements) {
+        super(maxStatements);
+        this.storageEngine = storageEngine;
+    }
+
+    /**
+     * Returns the compiled statement for the given SQL, compiling it if necessary. The statement
+     * stays open until it's given back with release().
+     */
+    public synchronized SQLiteStatement acquire(String sql) throws SQLException {
+        SQLiteStatement statement = get(sql);
+        if (statement == null) {
+            throw new SQLException("Unable to compile statement: " + sql);
+        }
+        Integer count = useCounts.get(statement);
+        useCounts.put(statement, (count == null) ? 1 : count + 1);
+        return statement;
+    }
+
+    /**
+     * Gives back a statement returned by acquire(). Closes it if it was evicted meanwhile and
+     * this was its last use. Returns false if the statement wasn't acquired from this cache.
+     */
+    public synchronized boolean release(SQLiteStatement statement) {
+        Integer count = useCounts.get(statement);
+        if (count == null) {
+            return false;
+        }
+        if (count > 1) {
+            useCounts.put(statement, count - 1);
+            return true;
+        }
+        useCounts.remove(statement);
+        if (evictedInUse.remove(statement) != null) {
+            statement.close();
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if any statement acquired from this cache hasn't been released yet.
+     */
+    public synchronized boolean isInUse() {
+        return !useCounts.isEmpty();
+    }
+
+    @Override
+    protected SQLiteStatement create(String sql) {
+        return storageEngine.compileStatement(sql);
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, String sql, SQLiteStatement oldValue, SQLiteStatement newValue) {
+        synchronized (this) {
+            if (useCounts.containsKey(oldValue)) {
+                evictedInUse.put(oldValue, Boolean.TRUE);
+                return;
+            }
+        }
+        oldValue.close();
+    }
+}
@@ -31,6 +31,13 @@ public interface SQLiteStorageEngine {
     void execSQL(String sql) throws SQLException;
     void execSQL(String sql, Object[] bindArgs) throws SQLException;
     Cursor rawQuery(String sql, String[] selectionArgs);
+    /**
+     * Like rawQuery(String, String[]) but binds each argument by its Java type: Long/Integer
+     * (and Boolean as 0/1) as INTEGER, Double/Float as REAL, byte[] as BLOB, null as NULL and
+     * anything else as TEXT, so integer columns are compared without text coercion.
+     */
+    Cursor rawQuery(String sql, Object[] bindArgs);
+    SQLiteStatement compileStatement(String sql) throws SQLException;
     long insert(String table, String nullColumnHack, ContentValues values);
     long insertWithOnConflict(String table, String nullColumnHack, ContentValues initialValues, int conflictAlgorithm);
     int update(String table, ContentValues values, String whereClause, String[] whereArgs);
@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.support;
+
+import com.couchbase.lite.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of stored revision bodies, with a preset dictionary shared by all the
+ * bodies of a database. Small JSON documents barely compress on their own; a dictionary built
+ * from the database's own common keys and values lets each body refer back to them.
+ *
+ * A compressed body is marked by its first byte, which can never start a JSON object:
+ * <pre>
+ *   0x01 | uncompressed length (4 bytes, big-endian) | zlib stream
+ * </pre>
+ * Anything else is stored as-is, so compressed and uncompressed rows can be mixed.
+ */
+public class BodyCompressor {
+
+    public static final byte COMPRESSED_MARKER = 0x01;
+    private static final int HEADER_LENGTH = 5;
+
+    // Bodies smaller than this aren't worth compressing
+    public static final int MIN_COMPRESS_LENGTH = 64;
+
+    // Deflate only looks back 32KB, so a bigger dictionary is wasted
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private final byte[] dictionary;
+
+    /**
+     * @param dictionary The preset dictionary, or null to compress without one.
+     */
+    public BodyCompressor(byte[] dictionary) {
+        this.dictionary = (dictionary != null && dictionary.length > 0) ? dictionary : null;
+    }
+
+    public static boolean isCompressed(byte[] data) {
+        return data != null && data.length >= HEADER_LENGTH && data[0] == COMPRESSED_MARKER;
+    }
+
+    /**
+     * Returns the compressed form of the body, or the body itself if it is too small or doesn't
+     * get any smaller.
+     */
+    public byte[] compress(byte[] json) {
+        if (json == null || json.length < MIN_COMPRESS_LENGTH || isCompressed(json)) {
+            return json;
+        }
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(json);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(json.length / 2 + HEADER_LENGTH);
+            out.write(COMPRESSED_MARKER);
+            out.write(json.length >>> 24);
+            out.write(json.length >>> 16);
+            out.write(json.length >>> 8);
+            out.write(json.length);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+                if (out.size() >= json.length) {
+                    return json;  // not worth it
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the original body of a compressed one; anything not compressed is returned as-is.
+     */
+    public byte[] decompress(byte[] data) {
+        if (!isCompressed(data)) {
+            return data;
+        }
+        int length = ((data[1] & 0xff) << 24) | ((data[2] & 0xff) << 16)
+                | ((data[3] & 0xff) << 8) | (data[4] & 0xff);
+        if (length < 0) {
+            throw new IllegalStateException("Compressed body has an invalid length");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+            // The header is only trusted as a check: the output grows as it's inflated, so a
+            // corrupt length can't make us allocate more than the stream really holds.
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    Math.min(length, Math.max(4 * data.length, 4096)));
+            byte[] buffer = new byte[4096];
+            while (out.size() <= length) {
+                int n = inflater.inflate(buffer);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (dictionary == null) {
+                            throw new IllegalStateException("Compressed body needs a dictionary but none is set");
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        break;
+                    }
+                }
+                out.write(buffer, 0, n);
+            }
+            if (out.size() != length) {
+                throw new IllegalStateException("Compressed body doesn't match its length");
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed body is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Builds a preset dictionary from sample bodies. The bodies are cut into fragments at JSON
+     * structure characters (so a fragment is typically a "key":value pair or a key), and the
+     * fragments that occur in more than one sample go into the dictionary, most frequent last,
+     * since deflate finds the end of the dictionary most cheaply.
+     *
+     * @return The dictionary, or null if the samples have nothing in common.
+     */
+    public static byte[] trainDictionary(List<byte[]> samples, int maxSize) {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (byte[] sample : samples) {
+            if (sample == null || isCompressed(sample)) {
+                continue;
+            }
+            String text;
+            try {
+                text = new String(sample, "UTF-8");
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+            int start = 0;
+            for (int i = 0; i <= text.length(); i++) {
+                char c = (i < text.length()) ? text.charAt(i) : ',';
+                if (c == ',' || c == '{' || c == '}' || c == '[' || c == ']') {
+                    int fragmentLength = i - start;
+                    if (fragmentLength >= 4 && fragmentLength <= 128) {
+                        String fragment = text.substring(start, i + (i < text.length() ? 1 : 0));
+                        Integer count = counts.get(fragment);
+                        counts.put(fragment, count == null ? 1 : count + 1);
+                        // Keys on their own repeat even when values don't:
+                        int colon = fragment.indexOf("\":");
+                        if (colon > 0 && colon + 2 < fragment.length()) {
+                            String key = fragment.substring(0, colon + 2);
+                            Integer keyCount = counts.get(key);
+                            counts.put(key, keyCount == null ? 1 : keyCount + 1);
+                        }
+                    }
+                    start = i + 1;
+                }
+            }
+        }
+
+        List<String> fragments = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > 1) {
+                fragments.add(entry.getKey());
+            }
+        }
+        if (fragments.isEmpty()) {
+            return null;
+        }
+        // Most valuable (count * length) first, so they survive the size cut
+        Collections.sort(fragments, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long va = (long) counts.get(a) * a.length();
+                long vb = (long) counts.get(b) * b.length();
+                return va < vb ? 1 : (va > vb ? -1 : a.compareTo(b));
+            }
+        });
+        List<String> chosen = new ArrayList<String>();
+        int size = 0;
+        for (String fragment : fragments) {
+            if (size + fragment.length() > maxSize) {
+                continue;
+            }
+            chosen.add(fragment);
+            size += fragment.length();
+        }
+        StringBuilder dictionary = new StringBuilder(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            dictionary.append(chosen.get(i));
+        }
+        Log.v(Log.TAG_DATABASE, "Trained %d-byte body dictionary from %d samples", size, samples.size());
+        try {
+            return dictionary.toString().getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.support;
+
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.util.Log;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Binary (Smile) encoding of stored document bodies. Smile is Jackson's binary equivalent of
+ * JSON: the same data model, but much cheaper to parse since strings are length-prefixed and
+ * repeated keys are back-references.
+ *
+ * Smile data always starts with the header ":)\n", which JSON never does, so a stored body
+ * identifies its own encoding and JSON and Smile rows can be mixed.
+ *
+ * Smile support comes from the optional jackson-dataformat-smile library, which is looked up at
+ * runtime; without it, isSmileAvailable() returns false and bodies stay JSON.
+ */
+public class BodyEncoding {
+
+    private static final String SMILE_FACTORY_CLASS = "com.fasterxml.jackson.dataformat.smile.SmileFactory";
+
+    private static final Object lock = new Object();
+    private static boolean initialized = false;
+    private static ObjectMapper smileMapper;
+
+    private static ObjectMapper getSmileMapper() {
+        synchronized (lock) {
+            if (!initialized) {
+                initialized = true;
+                try {
+                    JsonFactory factory = (JsonFactory) Class.forName(SMILE_FACTORY_CLASS).getDeclaredConstructor().newInstance();
+                    smileMapper = new ObjectMapper(factory);
+                } catch (ClassNotFoundException e) {
+                    Log.v(Log.TAG_DATABASE, "Smile encoding not available: %s is not on the classpath", SMILE_FACTORY_CLASS);
+                } catch (Exception e) {
+                    Log.w(Log.TAG_DATABASE, "Unable to create Smile encoder", e);
+                }
+            }
+            return smileMapper;
+        }
+    }
+
+    public static boolean isSmileAvailable() {
+        return getSmileMapper() != null;
+    }
+
+    public static boolean isSmile(byte[] data) {
+        return data != null && data.length >= 3 && data[0] == ':' && data[1] == ')' && data[2] == '\n';
+    }
+
+    /**
+     * Returns the ObjectMapper that reads the given body: the Smile one for Smile data,
+     * else the regular JSON one.
+     */
+    public static ObjectMapper mapperFor(byte[] data) {
+        if (isSmile(data)) {
+            ObjectMapper mapper = getSmileMapper();
+            if (mapper == null) {
+                throw new IllegalStateException("Body is Smile-encoded but Smile support is not available");
+            }
+            return mapper;
+        }
+        return Manager.getObjectMapper();
+    }
+
+    /**
+     * Re-encodes JSON data as Smile, token by token, without building the object tree.
+     */
+    public static byte[] jsonToSmile(byte[] json) throws IOException {
+        ObjectMapper mapper = getSmileMapper();
+        if (mapper == null) {
+            throw new IllegalStateException("Smile support is not available");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length);
+        JsonParser parser = Manager.getObjectMapper().getFactory().createParser(json);
+        try {
+            JsonGenerator generator = mapper.getFactory().createGenerator(out);
+            try {
+                parser.nextToken();
+                generator.copyCurrentStructure(parser);
+            } finally {
+                generator.close();
+            }
+        } finally {
+            parser.close();
+        }
+        return out.toByteArray();
+    }
+}
@@ -1,7 +1,6 @@
 package com.couchbase.lite.support;
 
 import com.couchbase.lite.Database;
-import com.couchbase.lite.Manager;
 import com.couchbase.lite.util.Log;
 
 import java.lang.ref.ReferenceQueue;
@@ -25,7 +24,7 @@ public class LazyJsonObject<K,V> extends AbstractMap<K,V> {
     private Map<K, V> cache = new HashMap<K, V>();
 
     public LazyJsonObject(byte[] json) {
-        if(json[0] != '{') {
+        if(json[0] != '{' && !BodyEncoding.isSmile(json)) {
             throw new IllegalArgumentException("data must represent a JSON Object");
         }
         this.json = json;
@@ -113,7 +112,7 @@ public class LazyJsonObject<K,V> extends AbstractMap<K,V> {
        }
 
        try {
-           Map<K,V> parsedprops  = (Map<K,V>)Manager.getObjectMapper().readValue(json, Object.class);
+           Map<K,V> parsedprops  = (Map<K,V>)BodyEncoding.mapperFor(json).readValue(json, Object.class);
            //Merge parsed properties into map, overwriting the values for duplicate keys
            parsedprops.putAll(cache);
            cache = parsedprops;
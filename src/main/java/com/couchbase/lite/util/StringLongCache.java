@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.util;
+
+/**
+ * A fixed-size, thread-safe cache from String to long, stored in parallel arrays so entries
+ * don't box their values or allocate map nodes.
+ *
+ * Open addressing with a short probe: a key lives in one of PROBE_LENGTH slots after its home
+ * slot. When those are all taken, a new key replaces the entry in its home slot, so the cache
+ * never grows past its capacity and never needs rehashing. Lookups return 0 for a missing key,
+ * so 0 can't be stored as a value.
+ */
+public class StringLongCache {
+
+    private static final int PROBE_LENGTH = 4;
+
+    private final String[] keys;
+    private final long[] values;
+    private final int mask;
+    private int size;
+
+    /**
+     * @param capacity The maximum number of entries; rounded up to a power of two.
+     */
+    public StringLongCache(int capacity) {
+        int tableSize = Integer.highestOneBit(Math.max(capacity, PROBE_LENGTH) - 1) << 1;
+        keys = new String[tableSize];
+        values = new long[tableSize];
+        mask = tableSize - 1;
+    }
+
+    private int home(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);  // fold the high bits in, since only the low ones pick the slot
+        return h & mask;
+    }
+
+    /**
+     * Returns the value for the key, or 0 if it isn't cached.
+     */
+    public synchronized long get(String key) {
+        int slot = home(key);
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            int index = (slot + i) & mask;
+            if (key.equals(keys[index])) {
+                return values[index];
+            }
+        }
+        return 0;
+    }
+
+    public synchronized void put(String key, long value) {
+        if (value == 0) {
+            remove(key);
+            return;
+        }
+        int slot = home(key);
+        int free = -1;
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            int index = (slot + i) & mask;
+            if (key.equals(keys[index])) {
+                values[index] = value;
+                return;
+            }
+            if (free < 0 && keys[index] == null) {
+                free = index;
+            }
+        }
+        if (free < 0) {
+            free = slot;  // evict whatever is in the home slot
+        } else {
+            size++;
+        }
+        keys[free] = key;
+        values[free] = value;
+    }
+
+    public synchronized void remove(String key) {
+        int slot = home(key);
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            int index = (slot + i) & mask;
+            if (key.equals(keys[index])) {
+                keys[index] = null;
+                values[index] = 0;
+                size--;
+                return;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        if (size == 0) {
+            return;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = null;
+            values[i] = 0;
+        }
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
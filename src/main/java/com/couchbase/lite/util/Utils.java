@@ -121,6 +121,22 @@ public class Utils {
         return result;
     }
 
+    public static byte[] byteArrayResultForQuery(SQLiteStorageEngine database, String query, Object[] args) throws SQLException {
+        byte[] result = null;
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(query, args);
+            if (cursor.moveToNext()) {
+                result = cursor.getBlob(0);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
     /**
      * cribbed from http://stackoverflow.com/questions/9655181/convert-from-byte-array-to-hex-string-in-java
      */